@@ -1,14 +1,24 @@
 package ictgc;
 
+import ictgc.google.CredentialStoreType;
+import ictgc.google.MergeStrategy;
+import ictgc.ical.CalendarParserMode;
+import ictgc.pipeline.ThreadMode;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
 import org.springframework.validation.annotation.Validated;
 
 import javax.validation.Valid;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import java.io.File;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -34,9 +44,70 @@ public class ApplicationProperties {
     @NotNull
     private File authorizationStorageDirectory;
 
+    /**
+     * Defines how credentials are stored in {@link ApplicationProperties#authorizationStorageDirectory}.
+     */
+    @NotNull
+    private CredentialStoreType credentialStoreType;
+
     @NotNull
     private File googleClientSecretsFile;
 
+    /**
+     * Directory to persist synchronization state to, so that unchanged feeds are not synchronized after restart.
+     */
+    @NotNull
+    private File syncStateDirectory;
+
+    /**
+     * Default maximum number of calendar flows of one user to be synchronized in parallel.
+     */
+    @Min(1)
+    private int maxConcurrentFlowsPerUser;
+
+    /**
+     * Names of iCalendar properties which are ignored when detecting feed changes by content digest,
+     * e.g. {@code DTSTAMP} regenerated by some servers on every request.
+     */
+    @NotNull
+    private List<String> volatileFeedProperties = new ArrayList<>();
+
+    /**
+     * Maximum number of entries in each of time zone resolution caches shared by all feeds.
+     */
+    @Min(1)
+    private int timeZoneCacheSize;
+
+    /**
+     * Time to keep resolved Google Calendar IDs of a user before reloading the calendars list.
+     */
+    @NotNull
+    private Duration calendarIdCacheTtl;
+
+    @NotNull
+    @Valid
+    private FeedClient feedClient;
+
+    @NotNull
+    @Valid
+    private Polling polling;
+
+    @NotNull
+    @Valid
+    private Pipeline pipeline;
+
+    @NotNull
+    @Valid
+    private GoogleBatch googleBatch;
+
+    @NotNull
+    @Valid
+    private GoogleQuota googleQuota;
+
+    @NotNull
+    @Valid
+    private TokenRefresh tokenRefresh;
+
     @Getter
     @Setter
     public static class User {
@@ -45,6 +116,20 @@ public class ApplicationProperties {
 
         @NotNull
         private String email;
+
+        /**
+         * Maximum number of calendar flows of this user to be synchronized in parallel,
+         * overrides {@link ApplicationProperties#maxConcurrentFlowsPerUser}.
+         */
+        @Min(1)
+        private Integer maxConcurrentFlows;
+    }
+
+    /**
+     * Resolves maximum number of calendar flows of the user to be synchronized in parallel.
+     */
+    public int getMaxConcurrentFlows(User user) {
+        return (user.getMaxConcurrentFlows() == null) ? maxConcurrentFlowsPerUser : user.getMaxConcurrentFlows();
     }
 
     @Getter
@@ -61,6 +146,21 @@ public class ApplicationProperties {
 
         @NotNull
         private String defaultICalTimeZone;
+
+        /**
+         * Read timeout for this feed, overrides {@link FeedClient#readTimeout}.
+         */
+        private Duration fetchTimeout;
+
+        /**
+         * Defines how events of this feed are parsed, ical4j is used by default.
+         */
+        private CalendarParserMode parserMode;
+
+        /**
+         * Defines how events are written to Google Calendar, incremental merge is used by default.
+         */
+        private MergeStrategy mergeStrategy;
     }
 
     @Getter
@@ -71,4 +171,182 @@ public class ApplicationProperties {
         @NotNull
         private String authorizationRedirectUrlBase;
     }
+
+    /**
+     * Configuration of adaptive polling of iCalendar feeds.
+     */
+    @Getter
+    @Setter
+    public static class Polling {
+        @NotNull
+        private Duration initialInterval;
+
+        @NotNull
+        private Duration minInterval;
+
+        @NotNull
+        private Duration maxInterval;
+
+        /**
+         * Upper bound of the delay after consecutive failures.
+         */
+        @NotNull
+        private Duration maxFailureBackoff;
+
+        /**
+         * Relative random deviation of the next run time, from 0 to 1.
+         */
+        @DecimalMin("0")
+        @DecimalMax("1")
+        private double jitter;
+    }
+
+    /**
+     * Configuration of HTTP client used to download iCalendar feeds.
+     */
+    @Getter
+    @Setter
+    public static class FeedClient {
+        @Min(1)
+        private int maxConnections;
+
+        @Min(1)
+        private int maxConnectionsPerHost;
+
+        @NotNull
+        private Duration connectTimeout;
+
+        @NotNull
+        private Duration readTimeout;
+
+        @NotNull
+        private Duration idleConnectionTimeout;
+
+        @NotNull
+        private DataSize maxResponseSize;
+    }
+
+    /**
+     * Sizes of synchronization pipeline stages. Parse stage has a worker per processor.
+     * Queues are bounded, so that a slow stage holds back the previous ones.
+     */
+    @Getter
+    @Setter
+    public static class Pipeline {
+        /**
+         * Maximum number of feeds retrieved in parallel.
+         */
+        @Min(1)
+        private int fetchConcurrency;
+
+        @Min(1)
+        private int fetchQueueCapacity;
+
+        @Min(1)
+        private int parseQueueCapacity;
+
+        /**
+         * Maximum number of calendars written in parallel; requests rate is limited by {@link GoogleQuota} anyway.
+         */
+        @Min(1)
+        private int writeConcurrency;
+
+        @Min(1)
+        private int writeQueueCapacity;
+
+        /**
+         * Threads to execute I/O-bound stages and Google batch requests with. Parse stage always uses
+         * platform threads.
+         */
+        @NotNull
+        private ThreadMode threadMode;
+    }
+
+    /**
+     * Configuration of Google API batch requests.
+     */
+    @Getter
+    @Setter
+    public static class GoogleBatch {
+        /**
+         * Number of operations in one batch request, Google allows up to 50.
+         */
+        @Min(1)
+        @Max(50)
+        private int chunkSize;
+
+        /**
+         * Maximum number of batch requests executed in parallel for one calendar.
+         */
+        @Min(1)
+        private int parallelism;
+
+        /**
+         * Maximum number of times temporarily failed operations are repeated.
+         */
+        @Min(0)
+        private int maxRetries;
+
+        /**
+         * Delay before the first retry, doubled with every next one.
+         */
+        @NotNull
+        private Duration initialRetryDelay;
+
+        /**
+         * Upper bound of the delay between retries.
+         */
+        @NotNull
+        private Duration maxRetryDelay;
+    }
+
+    /**
+     * Limits of Google API requests rate.
+     */
+    @Getter
+    @Setter
+    public static class GoogleQuota {
+        /**
+         * Maximum rate of requests of all users, should not exceed quota of Google project.
+         */
+        @DecimalMin(value = "0", inclusive = false)
+        private double projectRequestsPerSecond;
+
+        /**
+         * Maximum rate of requests of one user.
+         */
+        @DecimalMin(value = "0", inclusive = false)
+        private double userRequestsPerSecond;
+    }
+
+    /**
+     * Configuration of background refresh of Google access tokens.
+     */
+    @Getter
+    @Setter
+    public static class TokenRefresh {
+        /**
+         * Period of checking access tokens for expiration; configured in milliseconds, as used by the scheduler.
+         */
+        @NotNull
+        private Duration checkInterval;
+
+        /**
+         * Time before expiration when access token is refreshed.
+         */
+        @NotNull
+        private Duration leadTime;
+
+        /**
+         * Maximum number of refresh attempts per check.
+         */
+        @Min(1)
+        private int maxAttempts;
+
+        /**
+         * Delay before the second attempt, doubled with every next one.
+         */
+        @NotNull
+        private Duration retryDelay;
+    }
 }
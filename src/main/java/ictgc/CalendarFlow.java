@@ -1,10 +1,16 @@
 package ictgc;
 
+import java.time.Duration;
 import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
-import ictgc.domain.CalendarEvents;
+import ictgc.domain.CalendarSnapshot;
+import ictgc.google.MergeStrategy;
+import ictgc.ical.CalendarParserMode;
+import ictgc.state.FlowState;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
@@ -13,7 +19,8 @@ import lombok.ToString;
  * Describes data flow form iCalendar toGoogle Calendar.
  */
 @Getter
-@ToString(exclude = "previousData")
+@ToString(exclude = {"previousData", "feedDigest", "stateRestored", "persistedState", "schedule",
+        "synchronizationActive"})
 class CalendarFlow {
 
     /**
@@ -29,24 +36,97 @@ class CalendarFlow {
     private final String googleCalendarName;
 
     /**
-     * Calendar events retrieved in the previous synchronization iteration.
+     * Snapshot of calendar events retrieved in the previous synchronization iteration.
      * May be used to skip synchronization if not changes in data occured.
      */
     @Setter
     @Nullable
-    private CalendarEvents previousData;
+    private CalendarSnapshot previousData;
+
+    /**
+     * Digest of the feed content {@link CalendarFlow#previousData} was read from.
+     * Allows to skip synchronization if feed content is not changed.
+     */
+    @Setter
+    @Nullable
+    private String feedDigest;
+
+    /**
+     * Indicates if state of this flow has been loaded from persistent storage.
+     * State is loaded on the first synchronization.
+     */
+    @Setter
+    private boolean stateRestored;
+
+    /**
+     * State of this flow as it is currently persisted, to skip writing unchanged state.
+     */
+    @Setter
+    @Nullable
+    private FlowState persistedState;
 
     /**
      * Default time zone to be used if iCal does not provide one.
      */
     private final ZoneId defaultTimeZone;
 
+    /**
+     * Read timeout for feed retrieval, client default is used if not set.
+     */
+    @Nullable
+    private final Duration fetchTimeout;
+
+    /**
+     * Defines how events of the feed are parsed.
+     */
+    @Nonnull
+    private final CalendarParserMode parserMode;
+
+    /**
+     * Defines how events are written to Google Calendar.
+     */
+    @Nonnull
+    private final MergeStrategy mergeStrategy;
+
+    /**
+     * Adaptive polling schedule of this flow.
+     */
+    @Nonnull
+    private final FlowSchedule schedule;
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicBoolean synchronizationActive = new AtomicBoolean();
+
     public CalendarFlow(@Nonnull String iCalUrl,
                         @Nonnull String googleCalendarName,
-                        @Nonnull ZoneId defaultTimeZone) {
+                        @Nonnull ZoneId defaultTimeZone,
+                        @Nullable Duration fetchTimeout,
+                        @Nonnull CalendarParserMode parserMode,
+                        @Nonnull MergeStrategy mergeStrategy,
+                        @Nonnull FlowSchedule schedule) {
 
         this.iCalUrl = iCalUrl;
         this.googleCalendarName = googleCalendarName;
         this.defaultTimeZone = defaultTimeZone;
+        this.fetchTimeout = fetchTimeout;
+        this.parserMode = parserMode;
+        this.mergeStrategy = mergeStrategy;
+        this.schedule = schedule;
+    }
+
+    /**
+     * Marks this flow as being synchronized.
+     *
+     * @return {@code false} if synchronization of this flow is already active.
+     */
+    public boolean tryStartSynchronization() {
+        return synchronizationActive.compareAndSet(false, true);
+    }
+
+    /**
+     * Marks synchronization of this flow as finished, allowing next one to start.
+     */
+    public void finishSynchronization() {
+        synchronizationActive.set(false);
     }
 }
@@ -1,10 +1,13 @@
 package ictgc;
 
+import ictgc.pipeline.PipelineStage;
+import ictgc.pipeline.ThreadMode;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.core.task.TaskExecutor;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
@@ -22,14 +25,70 @@ public class CalendarsSynchronizationApp {
     }
 
     /**
-     * Task executor to be used by calendar synchronization service.
+     * Pipeline stage retrieving iCalendar feeds. Workers are mostly blocked on network I/O,
+     * thus may be virtual threads.
      */
-    @Bean(name = "userFlowExecutor")
+    @Bean(name = "feedFetchStage")
     @Autowired
-    public TaskExecutor taskExecutor(ApplicationProperties config) {
+    public PipelineStage feedFetchStage(ApplicationProperties config) {
+        ApplicationProperties.Pipeline pipelineConfig = config.getPipeline();
+        return new PipelineStage("feedFetch", pipelineConfig.getFetchConcurrency(),
+                pipelineConfig.getFetchQueueCapacity(), pipelineConfig.getThreadMode());
+    }
+
+    /**
+     * Pipeline stage parsing iCalendar feeds. CPU-bound, thus sized to the number of processors.
+     */
+    @Bean(name = "feedParseStage")
+    @Autowired
+    public PipelineStage feedParseStage(ApplicationProperties config) {
+        // virtual threads would not add any parallelism to CPU-bound work
+        return new PipelineStage("feedParse", Runtime.getRuntime().availableProcessors(),
+                config.getPipeline().getParseQueueCapacity(), ThreadMode.PLATFORM);
+    }
+
+    /**
+     * Pipeline stage writing changes to Google Calendar. Throughput is bounded by Google API quota,
+     * thus only a few workers are required. Workers are mostly blocked on network I/O,
+     * thus may be virtual threads.
+     */
+    @Bean(name = "googleWriteStage")
+    @Autowired
+    public PipelineStage googleWriteStage(ApplicationProperties config) {
+        ApplicationProperties.Pipeline pipelineConfig = config.getPipeline();
+        return new PipelineStage("googleWrite", pipelineConfig.getWriteConcurrency(),
+                pipelineConfig.getWriteQueueCapacity(), pipelineConfig.getThreadMode());
+    }
+
+    /**
+     * Task executor to start feed retrievals for flows which joined a retrieval not providing the events.
+     * Such retrievals are rare and wait for the fetch stage, thus a thread is started for every one of them,
+     * outside of the pipeline workers completing the joined retrieval.
+     */
+    @Bean(name = "feedRetrievalTaskExecutor")
+    @Autowired
+    public TaskExecutor feedRetrievalTaskExecutor(ApplicationProperties config) {
+        return new SimpleAsyncTaskExecutor(config.getPipeline().getThreadMode().newThreadFactory("feedRetrieval-"));
+    }
+
+    /**
+     * Task executor to run Google batch requests in parallel. Calling write stage worker executes
+     * one of the batch requests itself, thus every worker may need up to {@code parallelism - 1} threads.
+     * Virtual threads are not pooled: a thread is started for every task, as parallelism is already
+     * bounded by the batch executor.
+     */
+    @Bean(name = "googleBatchTaskExecutor")
+    @Autowired
+    public TaskExecutor googleBatchTaskExecutor(ApplicationProperties config) {
+        ThreadMode threadMode = config.getPipeline().getThreadMode();
+        if (threadMode == ThreadMode.VIRTUAL) {
+            return new SimpleAsyncTaskExecutor(threadMode.newThreadFactory("googleBatch-"));
+        }
+
         ThreadPoolTaskExecutor threadPoolTaskExecutor = new ThreadPoolTaskExecutor();
-        int poolSize = config.getUsers().size() * 2;
-        threadPoolTaskExecutor.setCorePoolSize(poolSize);
+        int poolSize = config.getPipeline().getWriteConcurrency() * (config.getGoogleBatch().getParallelism() - 1);
+        threadPoolTaskExecutor.setCorePoolSize(Math.max(poolSize, 1));
+        threadPoolTaskExecutor.setThreadFactory(threadMode.newThreadFactory("googleBatch-"));
         return threadPoolTaskExecutor;
     }
 
@@ -1,17 +1,28 @@
 package ictgc;
 
+import java.time.Instant;
 import java.time.ZoneId;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import ictgc.domain.CalendarSynchronizationException;
 import ictgc.google.CalendarWriter;
+import ictgc.google.GoogleApiService;
+import ictgc.google.GoogleQuotaManager;
+import ictgc.google.MergeStrategy;
+import ictgc.ical.CalendarFeedFetcher;
+import ictgc.ical.CalendarParserMode;
 import ictgc.ical.CalendarReader;
+import ictgc.ical.SharedFeedReader;
+import ictgc.ical.TimeZoneCache;
+import ictgc.pipeline.PipelineStage;
+import ictgc.state.SyncStateStore;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.core.task.TaskExecutor;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
@@ -22,48 +33,123 @@ import org.springframework.stereotype.Service;
 @Slf4j
 public class CalendarsSynchronizer {
 
-    private final TaskExecutor taskExecutor;
+    private final PipelineStage googleWriteStage;
+    private final List<PipelineStage> pipelineStages;
+    private final CalendarFeedFetcher calendarFeedFetcher;
+    private final SharedFeedReader sharedFeedReader;
+    private final CalendarReader calendarReader;
+    private final TimeZoneCache timeZoneCache;
+    private final GoogleQuotaManager googleQuotaManager;
+    private final GoogleApiService googleApiService;
     private final Collection<UserFlow> userFlows;
 
     @Autowired
     public CalendarsSynchronizer(
-            @Qualifier("userFlowExecutor") TaskExecutor taskExecutor,
+            @Qualifier("googleWriteStage") PipelineStage googleWriteStage,
+            List<PipelineStage> pipelineStages,
             ApplicationProperties config,
+            CalendarFeedFetcher calendarFeedFetcher,
+            SharedFeedReader sharedFeedReader,
             CalendarReader calendarReader,
-            CalendarWriter calendarWriter) {
+            CalendarWriter calendarWriter,
+            TimeZoneCache timeZoneCache,
+            GoogleQuotaManager googleQuotaManager,
+            GoogleApiService googleApiService,
+            SyncStateStore syncStateStore) {
 
-        this.taskExecutor = taskExecutor;
-        this.userFlows = getUserFlows(config, calendarReader, calendarWriter);
+        this.googleWriteStage = googleWriteStage;
+        this.pipelineStages = pipelineStages;
+        this.calendarFeedFetcher = calendarFeedFetcher;
+        this.sharedFeedReader = sharedFeedReader;
+        this.calendarReader = calendarReader;
+        this.timeZoneCache = timeZoneCache;
+        this.googleQuotaManager = googleQuotaManager;
+        this.googleApiService = googleApiService;
+        this.userFlows = getUserFlows(config, sharedFeedReader, calendarWriter, syncStateStore);
+
+        googleApiService.addAuthorizationListener(this::onUserAuthorized);
     }
 
     /**
      * Schedules synchronization of all users' calendars.
-     * Launches synchronization task for every user in a separate thread.
+     * Checks polling schedules of every calendar flow, and launches due flows into synchronization pipeline.
+     * Users who are asked to authorize the application are skipped.
      */
     @Scheduled(fixedDelayString = "${ical-to-google-calendar.synchronization-schedule-delay}")
     public void synchronizeCalendars() {
         log.trace("launching synchronization");
 
+        Instant now = Instant.now();
+        sharedFeedReader.releaseExpiredEvents(now);
+
         // don't want to bother with aspectj proxies
-        userFlows.forEach(userFlow -> taskExecutor.execute(userFlow::synchronizeUserCalendars));
+        userFlows.stream()
+                .filter(userFlow -> !googleApiService.isAuthorizationPending(userFlow.getUserId()))
+                .filter(userFlow -> userFlow.hasDueCalendars(now))
+                .forEach(userFlow -> userFlow.synchronizeDueCalendars(now));
 
         log.trace("all flows have been launched");
+
+        log.debug("{} of {} feed fetches were answered as not modified",
+                calendarFeedFetcher.getNotModifiedCount(), calendarFeedFetcher.getFetchesCount());
+        log.debug("lightweight parser: {} events parsed by ical4j instead, {} mismatches with ical4j",
+                calendarReader.getLightweightFallbacksCount(), calendarReader.getLightweightMismatchesCount());
+        log.debug("time zone cache: {} hits, {} misses",
+                timeZoneCache.getHitsCount(), timeZoneCache.getMissesCount());
+        log.debug("Google API quota: {} of {} requests throttled, {} ms waited in total",
+                googleQuotaManager.getThrottledCount(), googleQuotaManager.getRequestsCount(),
+                googleQuotaManager.getWaitTimeMillis());
+        pipelineStages.forEach(stage -> log.debug(
+                "{} stage: {} queued, {} active, {} completed, {} ms average wait, {} ms average execution",
+                stage.getName(), stage.getQueueDepth(), stage.getActiveCount(), stage.getCompletedCount(),
+                stage.getAverageWaitTimeMillis(), stage.getAverageExecutionTimeMillis()));
+        if (log.isTraceEnabled()) {
+            getScheduledFlows().forEach(scheduledFlow -> log.trace("{}", scheduledFlow));
+        }
+    }
+
+    /**
+     * Makes all the calendars of just authorized user due, so that they are synchronized on the next run.
+     * Called by authorization callback server, thus flows are not launched here, as it might block.
+     */
+    private void onUserAuthorized(String userId) {
+        Instant now = Instant.now();
+        userFlows.stream()
+                .filter(userFlow -> userFlow.getUserId().equals(userId))
+                .forEach(userFlow -> userFlow.scheduleAllCalendars(now));
+    }
+
+    /**
+     * Describes polling schedules of all the calendar flows, including their next run times.
+     */
+    public List<ScheduledFlowState> getScheduledFlows() {
+        return userFlows.stream()
+                .flatMap(userFlow -> userFlow.getScheduledFlows().stream())
+                .collect(Collectors.toList());
     }
 
     private Collection<UserFlow> getUserFlows(
             ApplicationProperties config,
-            CalendarReader calendarReader,
-            CalendarWriter calendarWriter) {
+            SharedFeedReader sharedFeedReader,
+            CalendarWriter calendarWriter,
+            SyncStateStore syncStateStore) {
 
         Map<String, UserFlow> userFlowsMap = new HashMap<>();
         for (ApplicationProperties.Flow configFlow : config.getFlows()) {
             UserFlow userFlow = userFlowsMap.computeIfAbsent(
                     configFlow.getUserId(),
-                    userId -> createUserFlowByUserId(userId, config, calendarReader, calendarWriter));
+                    userId -> createUserFlowByUserId(userId, config, sharedFeedReader, calendarWriter, syncStateStore));
             ZoneId defaultTimeZone = (configFlow.getDefaultICalTimeZone() == null)
                     ? ZoneId.systemDefault() : ZoneId.of(configFlow.getDefaultICalTimeZone());
-            userFlow.addCalendarFlow(
-                    new CalendarFlow(configFlow.getICalUrl(), configFlow.getGoogleCalendarName(), defaultTimeZone));
+            userFlow.addCalendarFlow(new CalendarFlow(
+                    configFlow.getICalUrl(),
+                    configFlow.getGoogleCalendarName(),
+                    defaultTimeZone,
+                    configFlow.getFetchTimeout(),
+                    (configFlow.getParserMode() == null) ? CalendarParserMode.ICAL4J : configFlow.getParserMode(),
+                    (configFlow.getMergeStrategy() == null)
+                            ? MergeStrategy.INCREMENTAL : configFlow.getMergeStrategy(),
+                    new FlowSchedule(config.getPolling(), Instant.now())));
         }
         return userFlowsMap.values();
     }
@@ -71,15 +157,23 @@ public class CalendarsSynchronizer {
     private UserFlow createUserFlowByUserId(
             String userId,
             ApplicationProperties config,
-            CalendarReader calendarReader,
-            CalendarWriter calendarWriter) {
+            SharedFeedReader sharedFeedReader,
+            CalendarWriter calendarWriter,
+            SyncStateStore syncStateStore) {
 
         ApplicationProperties.User configUser = config.getUsers().stream()
                 .filter(user -> user.getId().equals(userId))
                 .findAny()
                 .orElseThrow(() -> new CalendarSynchronizationException("User " + userId + " is not found"));
 
-        return new UserFlow(configUser.getId(), configUser.getEmail(), calendarReader, calendarWriter);
+        return new UserFlow(
+                configUser.getId(),
+                configUser.getEmail(),
+                config.getMaxConcurrentFlows(configUser),
+                googleWriteStage,
+                sharedFeedReader,
+                calendarWriter,
+                syncStateStore);
     }
 
 }
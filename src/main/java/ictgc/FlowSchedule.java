@@ -0,0 +1,109 @@
+package ictgc;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.annotation.Nonnull;
+
+/**
+ * Adaptive polling schedule of a {@link CalendarFlow}.
+ * Polling interval shrinks when feed changes and grows while it stays the same, within configured bounds.
+ * The more often the feed has changed recently, the slower the interval grows, so that a single quiet run
+ * does not move a busy feed far away from its pace.
+ * Failures postpone the next run exponentially. Every run time is randomly spread by configured jitter
+ * to avoid all flows firing at the same moment.
+ * <p>
+ * Updated by flow threads and read by scheduler thread, thus all the methods are synchronized.
+ */
+class FlowSchedule {
+
+    private static final double CHANGED_INTERVAL_FACTOR = 0.5;
+    private static final double UNCHANGED_INTERVAL_FACTOR = 1.5;
+    private static final double CHANGE_RATE_WEIGHT = 0.2;
+
+    private final ApplicationProperties.Polling config;
+
+    private Instant nextRunTime;
+    private Duration interval;
+    private int consecutiveFailures;
+    private double changeRate;
+
+    FlowSchedule(@Nonnull ApplicationProperties.Polling config, @Nonnull Instant now) {
+        this.config = config;
+        this.interval = clamp(config.getInitialInterval());
+        // spread first runs of all the flows within the jitter window
+        this.nextRunTime = now.plusMillis(
+                (long) (ThreadLocalRandom.current().nextDouble() * config.getJitter() * interval.toMillis()));
+    }
+
+    /**
+     * Checks if flow should be synchronized at the provided time.
+     */
+    synchronized boolean isDue(@Nonnull Instant now) {
+        return !nextRunTime.isAfter(now);
+    }
+
+    /**
+     * Adapts the schedule to the outcome of the synchronization and plans the next run.
+     */
+    synchronized void onSynchronized(@Nonnull FlowSynchronizationResult result, @Nonnull Instant now) {
+        Duration delay;
+        if (result == FlowSynchronizationResult.FAILED) {
+            consecutiveFailures++;
+            long backoffMillis = interval.toMillis() << Math.min(consecutiveFailures, 20);
+            delay = Duration.ofMillis(Math.min(backoffMillis, config.getMaxFailureBackoff().toMillis()));
+        } else {
+            consecutiveFailures = 0;
+
+            boolean changed = result == FlowSynchronizationResult.CHANGED;
+            changeRate = changeRate * (1 - CHANGE_RATE_WEIGHT) + (changed ? CHANGE_RATE_WEIGHT : 0);
+            double factor = changed
+                    ? CHANGED_INTERVAL_FACTOR
+                    : 1 + (UNCHANGED_INTERVAL_FACTOR - 1) * (1 - changeRate);
+            interval = clamp(multiply(interval, factor));
+            delay = interval;
+        }
+
+        double jitterFactor = 1 + config.getJitter() * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        nextRunTime = now.plus(multiply(delay, jitterFactor));
+    }
+
+    /**
+     * Plans the next run at the provided time, regardless of the current schedule.
+     */
+    synchronized void runAt(@Nonnull Instant now) {
+        nextRunTime = now;
+    }
+
+    synchronized Instant getNextRunTime() {
+        return nextRunTime;
+    }
+
+    /**
+     * Captures consistent state of this schedule for inspection.
+     */
+    synchronized ScheduledFlowState describe(String userId, CalendarFlow calendarFlow) {
+        return new ScheduledFlowState(
+                userId,
+                calendarFlow.getICalUrl(),
+                calendarFlow.getGoogleCalendarName(),
+                nextRunTime,
+                interval,
+                consecutiveFailures,
+                changeRate);
+    }
+
+    private Duration clamp(Duration duration) {
+        if (duration.compareTo(config.getMinInterval()) < 0) {
+            return config.getMinInterval();
+        }
+        if (duration.compareTo(config.getMaxInterval()) > 0) {
+            return config.getMaxInterval();
+        }
+        return duration;
+    }
+
+    private static Duration multiply(Duration duration, double factor) {
+        return Duration.ofMillis((long) (duration.toMillis() * factor));
+    }
+}
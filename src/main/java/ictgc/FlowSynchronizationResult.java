@@ -0,0 +1,22 @@
+package ictgc;
+
+/**
+ * Outcome of one synchronization iteration of {@link CalendarFlow}.
+ */
+enum FlowSynchronizationResult {
+
+    /**
+     * Feed data has changed and has been written to Google Calendar.
+     */
+    CHANGED,
+
+    /**
+     * Feed data has not changed since the previous iteration.
+     */
+    UNCHANGED,
+
+    /**
+     * Synchronization has failed.
+     */
+    FAILED
+}
@@ -0,0 +1,56 @@
+package ictgc;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Read-only view on the polling schedule of a calendar flow, for inspection purposes.
+ */
+@Getter
+@ToString
+public class ScheduledFlowState {
+
+    private final String userId;
+    private final String iCalUrl;
+    private final String googleCalendarName;
+
+    /**
+     * Time when flow is to be synchronized next.
+     */
+    private final Instant nextRunTime;
+
+    /**
+     * Current polling interval, adapted to observed changes of the feed.
+     */
+    private final Duration interval;
+
+    /**
+     * Number of failed synchronizations in a row.
+     */
+    private final int consecutiveFailures;
+
+    /**
+     * Exponentially weighted share of runs which detected changes in the feed.
+     */
+    private final double changeRate;
+
+    ScheduledFlowState(String userId,
+                       String iCalUrl,
+                       String googleCalendarName,
+                       Instant nextRunTime,
+                       Duration interval,
+                       int consecutiveFailures,
+                       double changeRate) {
+
+        this.userId = userId;
+        this.iCalUrl = iCalUrl;
+        this.googleCalendarName = googleCalendarName;
+        this.nextRunTime = nextRunTime;
+        this.interval = interval;
+        this.consecutiveFailures = consecutiveFailures;
+        this.changeRate = changeRate;
+    }
+}
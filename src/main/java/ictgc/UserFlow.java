@@ -1,84 +1,275 @@
 package ictgc;
 
 import java.io.IOException;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
 
 import ictgc.domain.CalendarEvents;
+import ictgc.domain.CalendarSnapshot;
+import ictgc.google.AuthorizationRequiredException;
 import ictgc.google.CalendarWriter;
-import ictgc.ical.CalendarReader;
+import ictgc.google.MergeResult;
+import ictgc.ical.SharedFeed;
+import ictgc.ical.SharedFeedReader;
+import ictgc.pipeline.PipelineStage;
+import ictgc.state.FlowState;
+import ictgc.state.SyncStateStore;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.IOUtils;
 
 /**
  * Synchronizes all the calendars for one user.
+ * Calendar flows are processed in parallel by the stages of synchronization pipeline, up to the configured limit;
+ * flows writing to the same Google Calendar are serialized.
  */
 @Slf4j
 class UserFlow {
 
+    @Getter
     private String userId;
     private String userEmail;
     private List<CalendarFlow> calendarFlows = new ArrayList<>();
-    private final CalendarReader calendarReader;
+    private final SharedFeedReader sharedFeedReader;
     private final CalendarWriter calendarWriter;
-    private final ReentrantLock lock = new ReentrantLock();
+    private final SyncStateStore syncStateStore;
+    private final PipelineStage googleWriteStage;
+    private final Semaphore calendarFlowPermits;
+    private final ConcurrentMap<String, Lock> googleCalendarLocks = new ConcurrentHashMap<>();
 
     public UserFlow(@Nonnull String userId,
                     @Nonnull String userEmail,
-                    @Nonnull CalendarReader calendarReader,
-                    @Nonnull CalendarWriter calendarWriter) {
+                    int maxConcurrentFlows,
+                    @Nonnull PipelineStage googleWriteStage,
+                    @Nonnull SharedFeedReader sharedFeedReader,
+                    @Nonnull CalendarWriter calendarWriter,
+                    @Nonnull SyncStateStore syncStateStore) {
 
         this.userId = userId;
         this.userEmail = userEmail;
-        this.calendarReader = calendarReader;
+        this.googleWriteStage = googleWriteStage;
+        this.calendarFlowPermits = new Semaphore(maxConcurrentFlows);
+        this.sharedFeedReader = sharedFeedReader;
         this.calendarWriter = calendarWriter;
+        this.syncStateStore = syncStateStore;
     }
 
     /**
      * Thread-safe synchronization of user calendars.
+     * Launches every calendar flow which is due at provided time and is not active yet, without waiting
+     * for them to complete. Flows exceeding the limit of concurrent flows stay due and are launched later.
+     * Calling thread is blocked while the first stage of the pipeline is full.
      */
-    public void synchronizeUserCalendars() {
-        if (!lock.tryLock()) {
-            log.trace("{} synch is still active, skipping", userId);
-            return;
+    public void synchronizeDueCalendars(@Nonnull Instant now) {
+        log.trace("starting synchronizing data for {}", userId);
+
+        for (CalendarFlow calendarFlow : calendarFlows) {
+            if (!calendarFlow.getSchedule().isDue(now)) {
+                continue;
+            }
+
+            if (!calendarFlow.tryStartSynchronization()) {
+                log.trace("{} synch is still active, skipping", calendarFlow);
+                continue;
+            }
+
+            if (!calendarFlowPermits.tryAcquire()) {
+                calendarFlow.finishSynchronization();
+                log.trace("concurrent flows limit of {} is reached, postponing {}", userId, calendarFlow);
+                continue;
+            }
+
+            try {
+                synchronizeCalendarFlow(calendarFlow, now);
+            } catch (RuntimeException e) {
+                calendarFlowPermits.release();
+                calendarFlow.finishSynchronization();
+                log.error("failed to launch calendar flow " + calendarFlow, e);
+            }
         }
 
-        try {
-            log.trace("starting synchronizing data for {}", userId);
+        log.trace("done, flows of {} are launched", userId);
+    }
+
+    /**
+     * Makes all the calendar flows due for synchronization at provided time.
+     */
+    public void scheduleAllCalendars(@Nonnull Instant now) {
+        calendarFlows.forEach(calendarFlow -> calendarFlow.getSchedule().runAt(now));
+    }
+
+    /**
+     * Checks if any of calendar flows is due for synchronization at provided time.
+     */
+    public boolean hasDueCalendars(@Nonnull Instant now) {
+        return calendarFlows.stream().anyMatch(calendarFlow -> calendarFlow.getSchedule().isDue(now));
+    }
+
+    /**
+     * Describes polling schedules of all the calendar flows of this user.
+     */
+    @Nonnull
+    public List<ScheduledFlowState> getScheduledFlows() {
+        return calendarFlows.stream()
+                .map(calendarFlow -> calendarFlow.getSchedule().describe(userId, calendarFlow))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Launches the flow through synchronization pipeline: the feed is read in fetch and parse stages,
+     * and changes are written in Google write stage.
+     */
+    private void synchronizeCalendarFlow(CalendarFlow calendarFlow, Instant now) {
+        restoreState(calendarFlow);
+
+        log.trace("reading calendar feed: {}", calendarFlow.getICalUrl());
+
+        sharedFeedReader.read(
+                calendarFlow.getICalUrl(),
+                calendarFlow.getDefaultTimeZone(),
+                calendarFlow.getParserMode(),
+                calendarFlow.getFetchTimeout(),
+                // digest is only meaningful if we hold the data it describes
+                (calendarFlow.getPreviousData() == null) ? null : calendarFlow.getFeedDigest(),
+                now)
+                .thenApply(sharedFeed -> detectChanges(calendarFlow, sharedFeed))
+                .thenCompose(feedChanges -> (feedChanges == null)
+                        ? CompletableFuture.completedFuture(FlowSynchronizationResult.UNCHANGED)
+                        : googleWriteStage.submit(() -> writeChanges(calendarFlow, feedChanges)))
+                .whenComplete((result, error) -> finishSynchronization(calendarFlow, result, error));
+    }
+
+    /**
+     * Compares the feed to the data synchronized previously.
+     *
+     * @return changes to be written or {@code null} if feed is not changed.
+     */
+    private FeedChanges detectChanges(CalendarFlow calendarFlow, SharedFeed sharedFeed) {
+        CalendarSnapshot previousData = calendarFlow.getPreviousData();
+
+        // digest is only meaningful if we hold the data it describes
+        if (previousData != null && sharedFeed.getDigest().equals(calendarFlow.getFeedDigest())) {
+            log.trace("feed content is not changed");
+            return null;
+        }
+        calendarFlow.setFeedDigest(sharedFeed.getDigest());
+
+        CalendarSnapshot currentData = CalendarSnapshot.of(sharedFeed.getEvents());
+        if (currentData.equals(previousData)) {
+            log.trace("no changes in feed, skipping synchronization");
+            return null;
+        }
 
-            for (CalendarFlow calendarFlow : calendarFlows) {
-                try {
-                    CalendarEvents calendarEvents = readICalendar(calendarFlow);
+        log.info("new data detected for {}, continue synch", calendarFlow);
+        if (log.isDebugEnabled()) {
+            log.debug("{} of {} events changed in {}",
+                    currentData.getChangedUuids(previousData).size(), currentData.size(), calendarFlow);
+        }
 
-                    if (calendarEvents != null) {
-                        log.info("new data detected for {}, continue synch", calendarFlow);
+        return new FeedChanges(sharedFeed.getEvents(), currentData);
+    }
 
-                        calendarWriter.mergeCalendarDataToGoogleCalendar(
-                                userId, userEmail, calendarEvents, calendarFlow.getGoogleCalendarName());
+    private FlowSynchronizationResult writeChanges(CalendarFlow calendarFlow, FeedChanges feedChanges)
+            throws IOException {
 
-                        calendarFlow.setPreviousData(calendarEvents);
+        Lock googleCalendarLock = googleCalendarLocks.computeIfAbsent(
+                calendarFlow.getGoogleCalendarName(), googleCalendarName -> new ReentrantLock());
+        googleCalendarLock.lock();
+        try {
+            MergeResult mergeResult = calendarWriter.mergeCalendarDataToGoogleCalendar(
+                    userId, userEmail, feedChanges.events, calendarFlow.getGoogleCalendarName(),
+                    calendarFlow.getMergeStrategy());
+
+            log.info("{} is synchronized: {} inserted, {} updated, {} deleted, {} unchanged, {} failed",
+                    calendarFlow, mergeResult.getInsertedCount(), mergeResult.getUpdatedCount(),
+                    mergeResult.getDeletedCount(), mergeResult.getUnchangedCount(), mergeResult.getFailedCount());
+
+            if (mergeResult.getFailedCount() == 0) {
+                calendarFlow.setPreviousData(feedChanges.snapshot);
+            } else {
+                // next iteration merges the feed again, even if not changed, to repeat failed operations
+                calendarFlow.setPreviousData(null);
+                calendarFlow.setFeedDigest(null);
+            }
+            return FlowSynchronizationResult.CHANGED;
+        } finally {
+            googleCalendarLock.unlock();
+        }
+    }
 
-                        log.info("{} is synchronized", calendarFlow);
-                    } else {
-                        log.trace("no changes in feed, skipping synchronization");
-                    }
-                } catch (Exception e) {
-                    calendarFlow.setPreviousData(null);
+    private void finishSynchronization(CalendarFlow calendarFlow, FlowSynchronizationResult result, Throwable error) {
+        try {
+            if (error != null) {
+                result = FlowSynchronizationResult.FAILED;
+                calendarFlow.setPreviousData(null);
+                calendarFlow.setFeedDigest(null);
 
-                    log.error("exception while processing calendar flow " + calendarFlow, e);
+                Throwable cause = (error instanceof CompletionException) ? error.getCause() : error;
+                if (cause instanceof AuthorizationRequiredException) {
+                    // flows are skipped until user authorizes the application, then synchronized on the next run
+                    log.info("{} is not synchronized: {}", calendarFlow, cause.getMessage());
+                } else {
+                    log.error("exception while processing calendar flow " + calendarFlow, cause);
                 }
             }
 
-            log.trace("done, {} is processed", userId);
+            saveState(calendarFlow);
+
+            FlowSchedule schedule = calendarFlow.getSchedule();
+            schedule.onSynchronized(result, Instant.now());
+            log.debug("next run of {} is at {}", calendarFlow, schedule.getNextRunTime());
         } finally {
-            lock.unlock();
+            calendarFlowPermits.release();
+            calendarFlow.finishSynchronization();
+        }
+    }
+
+    private void restoreState(CalendarFlow calendarFlow) {
+        if (calendarFlow.isStateRestored()) {
+            return;
+        }
+        calendarFlow.setStateRestored(true);
+
+        FlowState flowState = syncStateStore.loadFlowState(getFlowKey(calendarFlow));
+        if (flowState != null) {
+            calendarFlow.setPreviousData(flowState.getSnapshot());
+            calendarFlow.setFeedDigest(flowState.getFeedDigest());
+            calendarFlow.setPersistedState(flowState);
+            log.debug("state of {} is restored: {}", calendarFlow, flowState);
         }
     }
 
+    /**
+     * Persists state of the flow if it has changed. Flows without synchronized data have no state,
+     * thus state is removed when synchronization fails.
+     */
+    private void saveState(CalendarFlow calendarFlow) {
+        FlowState flowState = null;
+        CalendarSnapshot previousData = calendarFlow.getPreviousData();
+        if (previousData != null) {
+            flowState = new FlowState(calendarFlow.getFeedDigest(), previousData);
+        }
+
+        if (!Objects.equals(flowState, calendarFlow.getPersistedState())) {
+            syncStateStore.saveFlowState(getFlowKey(calendarFlow), flowState);
+            calendarFlow.setPersistedState(flowState);
+        }
+    }
+
+    private String getFlowKey(CalendarFlow calendarFlow) {
+        return userId + "/" + calendarFlow.getGoogleCalendarName() + "/" + calendarFlow.getICalUrl();
+    }
+
     /**
      * Registers new flow for this user.
      */
@@ -86,24 +277,17 @@ class UserFlow {
         this.calendarFlows.add(calendarFlow);
     }
 
-    private CalendarEvents readICalendar(CalendarFlow calendarFlow) throws IOException {
-        String iCalUrl = calendarFlow.getICalUrl();
-        log.trace("reading calendar feed: {}", iCalUrl);
-
-        String currentCalendarFeedContent = IOUtils.toString(new URL(iCalUrl), StandardCharsets.UTF_8);
-
-        log.trace("feed retrieved");
-
-        CalendarEvents currentData = calendarReader.readCalendar(currentCalendarFeedContent, calendarFlow.getDefaultTimeZone());
-
-        log.trace("feed parsed");
+    /**
+     * Events of the feed to be written to Google Calendar, with their snapshot.
+     */
+    private static class FeedChanges {
+        private final CalendarEvents events;
+        private final CalendarSnapshot snapshot;
 
-        CalendarEvents previousData = calendarFlow.getPreviousData();
-        if (previousData != null && previousData.equals(currentData)) {
-            return null;
+        FeedChanges(CalendarEvents events, CalendarSnapshot snapshot) {
+            this.events = events;
+            this.snapshot = snapshot;
         }
-
-        return currentData;
     }
 
 }
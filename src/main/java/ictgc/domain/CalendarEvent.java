@@ -3,6 +3,7 @@ package ictgc.domain;
 import lombok.Builder;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
+import lombok.ToString;
 
 import javax.annotation.Nonnull;
 import java.time.ZonedDateTime;
@@ -14,6 +15,7 @@ import java.time.ZonedDateTime;
 @Getter
 @Builder
 @EqualsAndHashCode
+@ToString
 public class CalendarEvent {
 
     /**
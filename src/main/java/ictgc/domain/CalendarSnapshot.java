@@ -0,0 +1,158 @@
+package ictgc.domain;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Compact representation of {@link CalendarEvents}, intended to detect changes between synchronizations
+ * without keeping the events. Holds 64-bit hash of content of events of every UUID, and aggregate hash
+ * of the whole calendar. Both hashes do not depend on order of events.
+ * <p>
+ * Two snapshots are considered equal if their aggregate hashes are equal, thus comparison is {@code O(1)}.
+ */
+public final class CalendarSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Hashes of events by UUID. Events sharing UUID (e.g. modified occurrences of recurring event)
+     * are combined into a single hash.
+     */
+    private final HashMap<String, Long> hashesByUuid;
+    private final long aggregateHash;
+    private final int eventsCount;
+
+    private CalendarSnapshot(HashMap<String, Long> hashesByUuid, int eventsCount) {
+        this.hashesByUuid = hashesByUuid;
+        this.eventsCount = eventsCount;
+
+        long aggregate = 0;
+        for (Map.Entry<String, Long> hashEntry : hashesByUuid.entrySet()) {
+            aggregate += mix(hashEntry.getKey().hashCode() * 31L + hashEntry.getValue());
+        }
+        this.aggregateHash = aggregate;
+    }
+
+    /**
+     * Captures snapshot of the events.
+     */
+    @Nonnull
+    public static CalendarSnapshot of(@Nonnull CalendarEvents calendarEvents) {
+        MessageDigest messageDigest = createMessageDigest();
+        HashMap<String, Long> hashesByUuid = new HashMap<>();
+        for (CalendarEvent calendarEvent : calendarEvents) {
+            // sum keeps the hash independent of the order of events with the same UUID
+            hashesByUuid.merge(calendarEvent.getUuid(), hash(messageDigest, calendarEvent), Long::sum);
+        }
+        return new CalendarSnapshot(hashesByUuid, calendarEvents.size());
+    }
+
+    /**
+     * Calculates UUIDs of events which are added, removed or changed since the previous snapshot.
+     *
+     * @param previous snapshot to compare with; all the UUIDs are considered changed if not provided.
+     */
+    @Nonnull
+    public Set<String> getChangedUuids(@Nullable CalendarSnapshot previous) {
+        if (previous == null) {
+            return Collections.unmodifiableSet(hashesByUuid.keySet());
+        }
+        if (equals(previous)) {
+            return Collections.emptySet();
+        }
+
+        Set<String> changedUuids = new HashSet<>();
+        hashesByUuid.forEach((uuid, hash) -> {
+            if (!hash.equals(previous.hashesByUuid.get(uuid))) {
+                changedUuids.add(uuid);
+            }
+        });
+        for (String previousUuid : previous.hashesByUuid.keySet()) {
+            if (!hashesByUuid.containsKey(previousUuid)) {
+                changedUuids.add(previousUuid);
+            }
+        }
+        return changedUuids;
+    }
+
+    /**
+     * Number of events in the snapshot.
+     */
+    public int size() {
+        return eventsCount;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof CalendarSnapshot)) {
+            return false;
+        }
+        CalendarSnapshot otherSnapshot = (CalendarSnapshot) other;
+        return aggregateHash == otherSnapshot.aggregateHash
+                && eventsCount == otherSnapshot.eventsCount
+                && hashesByUuid.size() == otherSnapshot.hashesByUuid.size();
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(aggregateHash);
+    }
+
+    private static long hash(MessageDigest messageDigest, CalendarEvent calendarEvent) {
+        messageDigest.reset();
+        update(messageDigest, calendarEvent.getUuid());
+        update(messageDigest, calendarEvent.getSummary());
+        update(messageDigest, calendarEvent.getDescription());
+        update(messageDigest, calendarEvent.getStartTime());
+        update(messageDigest, calendarEvent.getEndTime());
+        messageDigest.update((byte) (calendarEvent.isAllDayEvent() ? 1 : 0));
+        return ByteBuffer.wrap(messageDigest.digest()).getLong();
+    }
+
+    private static void update(MessageDigest messageDigest, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        messageDigest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+        messageDigest.update(bytes);
+    }
+
+    private static void update(MessageDigest messageDigest, ZonedDateTime value) {
+        // zone ID is kept as time may be represented differently in different zones with the same offset
+        messageDigest.update(ByteBuffer.allocate(Long.BYTES + Integer.BYTES)
+                .putLong(value.toEpochSecond())
+                .putInt(value.getOffset().getTotalSeconds())
+                .array());
+        update(messageDigest, value.getZone().getId());
+    }
+
+    /**
+     * Spreads bits of the value (finalizer of SplitMix64), so that sum of mixed values is a good hash.
+     */
+    private static long mix(long value) {
+        long mixed = value;
+        mixed = (mixed ^ (mixed >>> 30)) * 0xbf58476d1ce4e5b9L;
+        mixed = (mixed ^ (mixed >>> 27)) * 0x94d049bb133111ebL;
+        return mixed ^ (mixed >>> 31);
+    }
+
+    private static MessageDigest createMessageDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package ictgc.google;
+
+import ictgc.domain.CalendarSynchronizationException;
+
+/**
+ * Indicates that user has not authorized the application to access Google Calendar yet.
+ */
+public class AuthorizationRequiredException extends CalendarSynchronizationException {
+
+    public AuthorizationRequiredException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,108 @@
+package ictgc.google;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.services.calendar.Calendar;
+import lombok.Getter;
+
+/**
+ * Outcome of one operation executed by {@link GoogleBatchExecutor}.
+ *
+ * @param <T> type of operation response.
+ */
+@Getter
+public class BatchItemResult<T> {
+
+    private static final Set<String> RATE_LIMIT_REASONS = new HashSet<>(Arrays.asList(
+            "rateLimitExceeded", "userRateLimitExceeded", "quotaExceeded"));
+
+    /**
+     * The executed operation.
+     */
+    @Nonnull
+    private final AbstractGoogleJsonClientRequest<T> request;
+
+    /**
+     * Response of successful operation; {@code null} for failed operations, operations without response
+     * and inserts which turned out to be completed by a previous attempt.
+     */
+    @Nullable
+    private T response;
+
+    /**
+     * Error of failed operation.
+     */
+    @Nullable
+    private GoogleJsonError error;
+
+    private boolean completed;
+
+    /**
+     * Number of times the operation has been sent to Google.
+     */
+    private int attemptsCount;
+
+    BatchItemResult(@Nonnull AbstractGoogleJsonClientRequest<T> request) {
+        this.request = request;
+    }
+
+    void startAttempt() {
+        attemptsCount++;
+    }
+
+    void succeed(@Nullable T response) {
+        this.response = response;
+        this.error = null;
+        this.completed = true;
+    }
+
+    void fail(@Nonnull GoogleJsonError error) {
+        if (isDuplicateOfPreviousAttempt(error)) {
+            succeed(null);
+            return;
+        }
+        this.error = error;
+        this.completed = true;
+    }
+
+    /**
+     * Events are inserted with client-generated IDs, thus conflict on repeated insert means that
+     * a previous attempt has created the event, but its response has been lost.
+     */
+    private boolean isDuplicateOfPreviousAttempt(GoogleJsonError error) {
+        return attemptsCount > 1 && error.getCode() == 409 && request instanceof Calendar.Events.Insert;
+    }
+
+    /**
+     * Checks if operation has been executed successfully.
+     */
+    public boolean isSuccessful() {
+        return completed && error == null;
+    }
+
+    /**
+     * Checks if operation has failed temporarily and may succeed if repeated: it has not been executed
+     * at all due to batch request failure, Google has limited the request rate or experienced internal error.
+     */
+    public boolean isRetryable() {
+        if (!completed) {
+            return true;
+        }
+        if (error == null) {
+            return false;
+        }
+
+        int code = error.getCode();
+        if (code == 429 || code >= 500) {
+            return true;
+        }
+        return code == 403 && error.getErrors() != null && error.getErrors().stream()
+                .anyMatch(errorInfo -> RATE_LIMIT_REASONS.contains(errorInfo.getReason()));
+    }
+}
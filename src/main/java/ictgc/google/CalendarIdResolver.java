@@ -0,0 +1,100 @@
+package ictgc.google;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nonnull;
+
+import com.google.api.services.calendar.Calendar;
+import com.google.api.services.calendar.model.CalendarList;
+import com.google.api.services.calendar.model.CalendarListEntry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Resolves Google Calendar IDs by calendar names. Keeps a per-user cache of all the calendars of the user,
+ * loaded from complete calendars list and expired after configured time. Thread-safe.
+ */
+@Slf4j
+class CalendarIdResolver {
+
+    /**
+     * Partial response projection: only names and IDs of calendars are required.
+     */
+    private static final String FIELDS = "items(id,summary),nextPageToken";
+
+    private final Duration timeToLive;
+    private final ConcurrentMap<String, UserCalendars> calendarsByUser = new ConcurrentHashMap<>();
+
+    CalendarIdResolver(@Nonnull Duration timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Resolves ID of the calendar, loading calendars list of the user if not cached or expired.
+     *
+     * @throws IllegalArgumentException if user has no calendar with such name.
+     */
+    @Nonnull
+    String resolve(@Nonnull Calendar googleCalendarService, @Nonnull String userId, @Nonnull String calendarName)
+            throws IOException {
+
+        UserCalendars userCalendars = calendarsByUser.get(userId);
+        if (userCalendars == null || userCalendars.isExpired() || !userCalendars.idsByName.containsKey(calendarName)) {
+            userCalendars = load(googleCalendarService);
+            calendarsByUser.put(userId, userCalendars);
+        }
+
+        String calendarId = userCalendars.idsByName.get(calendarName);
+        if (calendarId == null) {
+            throw new IllegalArgumentException("Calendar " + calendarName + " is not found");
+        }
+        return calendarId;
+    }
+
+    /**
+     * Drops cached calendars of the user, e.g. when one of the calendars is not found anymore.
+     */
+    void invalidate(@Nonnull String userId) {
+        if (calendarsByUser.remove(userId) != null) {
+            log.debug("calendars of {} are evicted from cache", userId);
+        }
+    }
+
+    private UserCalendars load(Calendar googleCalendarService) throws IOException {
+        Map<String, String> idsByName = new HashMap<>();
+        String pageToken = null;
+        do {
+            CalendarList calendarList = googleCalendarService.calendarList().list()
+                    .setPageToken(pageToken)
+                    .setFields(FIELDS)
+                    .execute();
+            if (calendarList.getItems() != null) {
+                for (CalendarListEntry entry : calendarList.getItems()) {
+                    // as before, the first calendar with the name wins
+                    idsByName.putIfAbsent(entry.getSummary(), entry.getId());
+                }
+            }
+            pageToken = calendarList.getNextPageToken();
+        } while (pageToken != null);
+
+        return new UserCalendars(idsByName, Instant.now().plus(timeToLive));
+    }
+
+    private static class UserCalendars {
+        private final Map<String, String> idsByName;
+        private final Instant expirationTime;
+
+        UserCalendars(Map<String, String> idsByName, Instant expirationTime) {
+            this.idsByName = idsByName;
+            this.expirationTime = expirationTime;
+        }
+
+        boolean isExpired() {
+            return Instant.now().isAfter(expirationTime);
+        }
+    }
+}
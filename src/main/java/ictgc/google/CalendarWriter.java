@@ -1,18 +1,18 @@
 package ictgc.google;
 
 import com.google.api.client.auth.oauth2.TokenResponseException;
-import com.google.api.client.googleapis.batch.BatchRequest;
-import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.util.DateTime;
 import com.google.api.services.calendar.Calendar;
-import com.google.api.services.calendar.model.CalendarList;
-import com.google.api.services.calendar.model.CalendarListEntry;
+import com.google.api.services.calendar.CalendarRequest;
 import com.google.api.services.calendar.model.Event;
 import com.google.api.services.calendar.model.EventDateTime;
+import ictgc.ApplicationProperties;
 import ictgc.domain.CalendarEvent;
 import ictgc.domain.CalendarEvents;
+import ictgc.state.EventIndexState;
+import ictgc.state.SyncStateStore;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -20,25 +20,59 @@ import org.springframework.stereotype.Service;
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Writes {@link CalendarEvents} to Google Calendar.
- * Currently removes all previously created events and re-creates them.
- * In future, more sophisticated merge strategies may be implemented.
+ * Events created by the application are marked with iCalendar UUID, stored in private extended properties.
+ * Depending on {@link MergeStrategy}, previously created events are either re-created or updated in place.
  */
 @Service
 @Slf4j
 public class CalendarWriter {
 
     private static final String UUID_PROPERTY_NAME = "ical-to-google-calendar-uuid";
+    private static final String FINGERPRINT_PROPERTY_NAME = "ical-to-google-calendar-hash";
+
+    /**
+     * Property with constant value, which allows to list only the events created by the application.
+     */
+    private static final String OWNER_PROPERTY_NAME = "ical-to-google-calendar-owned";
+    private static final String OWNER_PROPERTY_VALUE = "true";
+
+    /**
+     * Partial response projection for events listing: only data required for matching events is transferred.
+     */
+    private static final String EVENTS_LIST_FIELDS = "items(id,extendedProperties/private),nextPageToken";
+
     private final GoogleApiService googleApiService;
+    private final GoogleBatchExecutor googleBatchExecutor;
+    private final CalendarIdResolver calendarIdResolver;
+    private final SyncStateStore syncStateStore;
+    private final ConcurrentMap<String, GoogleEventIndex> eventIndexes = new ConcurrentHashMap<>();
+    private final Set<String> calendarsWithOwnerProperty = ConcurrentHashMap.newKeySet();
 
     @Autowired
-    public CalendarWriter(@Nonnull GoogleApiService googleApiService) {
+    public CalendarWriter(
+            @Nonnull GoogleApiService googleApiService,
+            @Nonnull GoogleBatchExecutor googleBatchExecutor,
+            @Nonnull SyncStateStore syncStateStore,
+            @Nonnull ApplicationProperties config) {
+
         this.googleApiService = googleApiService;
+        this.googleBatchExecutor = googleBatchExecutor;
+        this.syncStateStore = syncStateStore;
+        this.calendarIdResolver = new CalendarIdResolver(config.getCalendarIdCacheTtl());
     }
 
     /**
@@ -48,11 +82,15 @@ public class CalendarWriter {
      * @param userEmail          email os user who owns the calendar.
      * @param calendarEvents     events to be synchronized to the calendar.
      * @param googleCalendarName name of Google calendar where events should be synchronized to.
+     * @param mergeStrategy      defines how existing events are updated.
+     * @return statistics of performed operations.
      * @throws IOException in case of synchronization issues.
      */
-    public void mergeCalendarDataToGoogleCalendar(
+    @Nonnull
+    public MergeResult mergeCalendarDataToGoogleCalendar(
             @Nonnull String userId, @Nonnull String userEmail,
-            @Nonnull CalendarEvents calendarEvents, @Nonnull String googleCalendarName)
+            @Nonnull CalendarEvents calendarEvents, @Nonnull String googleCalendarName,
+            @Nonnull MergeStrategy mergeStrategy)
             throws IOException {
 
         try {
@@ -60,21 +98,54 @@ public class CalendarWriter {
 
             Calendar googleCalendarService = googleApiService.getCalendarService(userId, userEmail);
 
-            CalendarListEntry googleCalendar = getGoogleCalendar(googleCalendarService, googleCalendarName);
-            String googleCalendarId = googleCalendar.getId();
+            String googleCalendarId = calendarIdResolver.resolve(googleCalendarService, userId, googleCalendarName);
+
+            MergeResult mergeResult;
+            if (mergeStrategy == MergeStrategy.INCREMENTAL) {
+                String eventIndexKey = userId + "/" + googleCalendarId;
+                GoogleEventIndex eventIndex = eventIndexes.computeIfAbsent(
+                        eventIndexKey, key -> loadEventIndex(key, googleCalendarId));
+                eventIndex.refresh(googleCalendarService);
+                syncStateStore.saveEventIndexState(eventIndexKey, eventIndex.toState());
+                mergeResult = mergeEvents(
+                        googleCalendarService, userId, eventIndex, calendarEvents, googleCalendarId);
+            } else {
+                List<BatchItemResult<Void>> deleteResults =
+                        deleteExistingEvents(googleCalendarService, userId, googleCalendarId);
+                List<BatchItemResult<Event>> insertResults =
+                        createEvents(googleCalendarService, calendarEvents, googleCalendarId);
+                int deleteFailuresCount = countFailures(deleteResults, googleCalendarId);
+                if (deleteFailuresCount == 0) {
+                    // all the events in the calendar are created with the owner property now
+                    calendarsWithOwnerProperty.add(userId + "/" + googleCalendarId);
+                }
+                int insertFailuresCount = countFailures(insertResults, googleCalendarId);
+                invalidateCalendarIdIfNotFound(userId, insertResults);
+                mergeResult = new MergeResult(
+                        insertResults.size() - insertFailuresCount,
+                        0,
+                        deleteResults.size() - deleteFailuresCount,
+                        0,
+                        insertFailuresCount + deleteFailuresCount);
+            }
 
-            deleteExistingEvents(googleCalendarService, googleCalendarId);
-            createEvents(googleCalendarService, calendarEvents, googleCalendarId);
+            log.info("all done: {}", mergeResult);
 
-            log.info("all done");
+            return mergeResult;
         } catch (GoogleJsonResponseException jsonException) {
+            if (jsonException.getStatusCode() == 404) {
+                calendarIdResolver.invalidate(userId);
+            }
             GoogleJsonError jsonError = jsonException.getDetails();
             if (requiresCredentialsReset(jsonError)) {
                 resetCredentials(userId);
             }
             throw jsonException;
         } catch (TokenResponseException tokenException) {
-            resetCredentials(userId);
+            // other token errors are considered transient, credentials are refreshed again later
+            if (GoogleApiService.isGrantRevoked(tokenException)) {
+                resetCredentials(userId);
+            }
             throw tokenException;
         }
     }
@@ -89,50 +160,179 @@ public class CalendarWriter {
         return errorCode == 401;
     }
 
-    private void createEvents(Calendar googleCalendarService, CalendarEvents calendarEvents, String googleCalendarId)
+    private List<BatchItemResult<Event>> createEvents(
+            Calendar googleCalendarService, CalendarEvents calendarEvents, String googleCalendarId)
             throws IOException {
 
         if (calendarEvents.isEmpty()) {
             log.info("no events to create, skipping");
-            return;
+            return Collections.emptyList();
         }
 
         log.info("creating {} events in {}", calendarEvents.size(), googleCalendarId);
 
-        JsonBatchCallback<Event> callback = new JsonBatchErrorCallback<>();
-        BatchRequest googleBatchRequest = googleCalendarService.batch();
         Calendar.Events eventsService = googleCalendarService.events();
 
+        List<CalendarRequest<Event>> insertRequests = new ArrayList<>();
         for (CalendarEvent calendarEvent : calendarEvents) {
-            Event.ExtendedProperties extendedProperties = new Event.ExtendedProperties();
-            HashMap<String, String> privateProperties = new HashMap<>();
-            extendedProperties.setPrivate(privateProperties);
-            privateProperties.put(UUID_PROPERTY_NAME, calendarEvent.getUuid());
-
-            Event googleCalendarEvent = new Event()
-                    .setSummary(calendarEvent.getSummary())
-                    .setDescription(calendarEvent.getDescription())
-                    .setExtendedProperties(extendedProperties);
-
-            googleCalendarEvent
-                    .setStart(zonedDateTimeToGoogleDateTime(
-                            calendarEvent.getStartTime(), calendarEvent.isAllDayEvent()));
-
-            if (calendarEvent.isAllDayEvent()) {
-                googleCalendarEvent.setEnd(
-                        zonedDateTimeToGoogleDateTime(calendarEvent.getStartTime().plusSeconds(86400), true));
-            } else {
-                googleCalendarEvent.setEnd(
-                        zonedDateTimeToGoogleDateTime(calendarEvent.getEndTime(), calendarEvent.isAllDayEvent()));
+            Event googleEvent = toGoogleEvent(calendarEvent).setId(generateEventId());
+            insertRequests.add(eventsService.insert(googleCalendarId, googleEvent));
+        }
+
+        List<BatchItemResult<Event>> insertResults = googleBatchExecutor.execute(googleCalendarService, insertRequests);
+
+        log.info("inserted");
+
+        return insertResults;
+    }
+
+    /**
+     * Matches existing events to calendar events by iCalendar UUID and executes only the required operations.
+     * Existing events are taken from the index, they are compared by their fingerprints.
+     * As UUID is not unique (e.g. for modified occurrences of recurring events), events with the same UUID
+     * are matched as groups: up-to-date events are kept, remaining ones are updated, and excess ones
+     * are inserted or deleted.
+     */
+    private MergeResult mergeEvents(
+            Calendar googleCalendarService, String userId, GoogleEventIndex eventIndex,
+            CalendarEvents calendarEvents, String googleCalendarId)
+            throws IOException {
+
+        log.info("merging {} events into {}", calendarEvents.size(), googleCalendarId);
+
+        Map<String, List<Event>> existingEventsByUuid = new HashMap<>();
+        for (Event existingEvent : eventIndex.getEvents()) {
+            existingEventsByUuid
+                    .computeIfAbsent(getICalUuid(existingEvent), uuid -> new ArrayList<>())
+                    .add(existingEvent);
+        }
+
+        Map<String, List<Event>> newEventsByUuid = new LinkedHashMap<>();
+        for (CalendarEvent calendarEvent : calendarEvents) {
+            newEventsByUuid
+                    .computeIfAbsent(calendarEvent.getUuid(), uuid -> new ArrayList<>())
+                    .add(toGoogleEvent(calendarEvent));
+        }
+
+        Calendar.Events eventsService = googleCalendarService.events();
+        List<CalendarRequest<Event>> writeRequests = new ArrayList<>();
+        List<CalendarRequest<Void>> deleteRequests = new ArrayList<>();
+
+        int unchangedCount = 0;
+
+        for (Map.Entry<String, List<Event>> newEventsEntry : newEventsByUuid.entrySet()) {
+            List<Event> newEvents = new ArrayList<>(newEventsEntry.getValue());
+            List<Event> existingEvents = existingEventsByUuid.getOrDefault(
+                    newEventsEntry.getKey(), Collections.emptyList());
+
+            Iterator<Event> newEventsIterator = newEvents.iterator();
+            while (newEventsIterator.hasNext()) {
+                Event newEvent = newEventsIterator.next();
+                Iterator<Event> existingEventsIterator = existingEvents.iterator();
+                while (existingEventsIterator.hasNext()) {
+                    if (isUpToDate(existingEventsIterator.next(), newEvent)) {
+                        existingEventsIterator.remove();
+                        newEventsIterator.remove();
+                        unchangedCount++;
+                        break;
+                    }
+                }
             }
 
-            eventsService.insert(googleCalendarId, googleCalendarEvent)
-                    .queue(googleBatchRequest, callback);
+            for (Event newEvent : newEvents) {
+                if (existingEvents.isEmpty()) {
+                    writeRequests.add(eventsService.insert(googleCalendarId, newEvent.setId(generateEventId())));
+                } else {
+                    Event existingEvent = existingEvents.remove(0);
+                    // patch would merge start and end, leaving stale date or dateTime on all-day switch
+                    writeRequests.add(eventsService.update(googleCalendarId, existingEvent.getId(), newEvent));
+                }
+            }
+            existingEventsByUuid.remove(newEventsEntry.getKey());
         }
 
-        googleBatchRequest.execute();
+        for (List<Event> obsoleteEvents : existingEventsByUuid.values()) {
+            for (Event obsoleteEvent : obsoleteEvents) {
+                deleteRequests.add(eventsService.delete(googleCalendarId, obsoleteEvent.getId()));
+            }
+        }
 
-        log.info("inserted");
+        List<BatchItemResult<Event>> writeResults = googleBatchExecutor.execute(googleCalendarService, writeRequests);
+        List<BatchItemResult<Void>> deleteResults = googleBatchExecutor.execute(googleCalendarService, deleteRequests);
+
+        int insertedCount = 0;
+        int updatedCount = 0;
+        for (BatchItemResult<Event> writeResult : writeResults) {
+            if (writeResult.isSuccessful()) {
+                if (writeResult.getRequest() instanceof Calendar.Events.Insert) {
+                    insertedCount++;
+                } else {
+                    updatedCount++;
+                }
+            }
+        }
+        int writeFailuresCount = countFailures(writeResults, googleCalendarId);
+        invalidateCalendarIdIfNotFound(userId, writeResults);
+        int deleteFailuresCount = countFailures(deleteResults, googleCalendarId);
+
+        return new MergeResult(
+                insertedCount,
+                updatedCount,
+                deleteResults.size() - deleteFailuresCount,
+                unchangedCount,
+                writeFailuresCount + deleteFailuresCount);
+    }
+
+    /**
+     * Inserted events get IDs generated by the client, so that an insert repeated after its response was lost
+     * is rejected as duplicate instead of creating the event twice (see {@link BatchItemResult}).
+     * Google requires IDs of base32hex characters, hex digits of random UUID satisfy it.
+     */
+    private static String generateEventId() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    private GoogleEventIndex loadEventIndex(String eventIndexKey, String googleCalendarId) {
+        GoogleEventIndex eventIndex = new GoogleEventIndex(googleCalendarId, event -> getICalUuid(event) != null);
+        EventIndexState eventIndexState = syncStateStore.loadEventIndexState(eventIndexKey);
+        if (eventIndexState != null) {
+            eventIndex.restore(eventIndexState);
+        }
+        return eventIndex;
+    }
+
+    private boolean isUpToDate(Event existingEvent, Event newEvent) {
+        // events written before fingerprints were introduced have none and are updated once
+        String existingFingerprint = getPrivateProperty(existingEvent, FINGERPRINT_PROPERTY_NAME);
+        return existingFingerprint != null
+                && existingFingerprint.equals(getPrivateProperty(newEvent, FINGERPRINT_PROPERTY_NAME));
+    }
+
+    private Event toGoogleEvent(CalendarEvent calendarEvent) {
+        Event.ExtendedProperties extendedProperties = new Event.ExtendedProperties();
+        HashMap<String, String> privateProperties = new HashMap<>();
+        extendedProperties.setPrivate(privateProperties);
+        privateProperties.put(UUID_PROPERTY_NAME, calendarEvent.getUuid());
+        privateProperties.put(FINGERPRINT_PROPERTY_NAME, EventFingerprint.of(calendarEvent));
+        privateProperties.put(OWNER_PROPERTY_NAME, OWNER_PROPERTY_VALUE);
+
+        Event googleCalendarEvent = new Event()
+                .setSummary(calendarEvent.getSummary())
+                .setDescription(calendarEvent.getDescription())
+                .setExtendedProperties(extendedProperties);
+
+        googleCalendarEvent
+                .setStart(zonedDateTimeToGoogleDateTime(
+                        calendarEvent.getStartTime(), calendarEvent.isAllDayEvent()));
+
+        if (calendarEvent.isAllDayEvent()) {
+            googleCalendarEvent.setEnd(
+                    zonedDateTimeToGoogleDateTime(calendarEvent.getStartTime().plusSeconds(86400), true));
+        } else {
+            googleCalendarEvent.setEnd(
+                    zonedDateTimeToGoogleDateTime(calendarEvent.getEndTime(), calendarEvent.isAllDayEvent()));
+        }
+        return googleCalendarEvent;
     }
 
     private EventDateTime zonedDateTimeToGoogleDateTime(ZonedDateTime zonedDateTime, boolean dateOnly) {
@@ -149,57 +349,115 @@ public class CalendarWriter {
         return eventDateTime;
     }
 
-    private void deleteExistingEvents(Calendar googleCalendarService, String googleCalendarId) throws IOException {
+    private List<BatchItemResult<Void>> deleteExistingEvents(
+            Calendar googleCalendarService, String userId, String googleCalendarId)
+            throws IOException {
+
         log.info("deleting events from {}", googleCalendarId);
 
+        // events are deleted after the listing is complete, not to shift the pages
+        List<String> eventIds = listOwnedEventIds(googleCalendarService, userId, googleCalendarId);
+
+        if (eventIds.isEmpty()) {
+            log.info("no events in this calendar, skipping deletion");
+            return Collections.emptyList();
+        }
+
         Calendar.Events eventsService = googleCalendarService.events();
-        List<Event> events = eventsService.list(googleCalendarId)
-                .setMaxResults(2500)
+
+        List<CalendarRequest<Void>> deleteRequests = new ArrayList<>();
+        for (String eventId : eventIds) {
+            deleteRequests.add(eventsService.delete(googleCalendarId, eventId));
+        }
+
+        List<BatchItemResult<Void>> deleteResults = googleBatchExecutor.execute(googleCalendarService, deleteRequests);
+
+        log.info("deleted {} events", eventIds.size());
+
+        return deleteResults;
+    }
+
+    /**
+     * Lists IDs of events of the calendar which were created by this application.
+     * Events are filtered by the owner property on Google side. Events created before the property was introduced
+     * do not have it, thus the first listing of every calendar is not filtered.
+     */
+    private List<String> listOwnedEventIds(Calendar googleCalendarService, String userId, String googleCalendarId)
+            throws IOException {
+
+        boolean filterByOwner = calendarsWithOwnerProperty.contains(userId + "/" + googleCalendarId);
+
+        Calendar.Events.List listRequest = googleCalendarService.events().list(googleCalendarId)
                 .setShowDeleted(Boolean.FALSE)
                 .setSingleEvents(Boolean.TRUE)
-                .setPageToken(null)
-                .execute()
-                .getItems();
-
-        if (events.isEmpty()) {
-            log.info("no events in this calendar, skipping deletion");
-            return;
+                .setFields(EVENTS_LIST_FIELDS);
+        if (filterByOwner) {
+            listRequest.setPrivateExtendedProperty(
+                    Collections.singletonList(OWNER_PROPERTY_NAME + "=" + OWNER_PROPERTY_VALUE));
         }
 
-        JsonBatchCallback<Void> callback = new JsonBatchErrorCallback<>();
-        BatchRequest batchRequest = googleCalendarService.batch();
+        List<String> eventIds = new ArrayList<>();
+        EventPages.forEachPage(listRequest, events -> {
+            for (Event event : events) {
+                if (getICalUuid(event) != null) {
+                    eventIds.add(event.getId());
+                }
+            }
+        });
 
-        for (Event event : events) {
-            if (getICalUuid(event) != null) {
-                eventsService.delete(googleCalendarId, event.getId())
-                        .queue(batchRequest, callback);
+        return eventIds;
+    }
+
+    /**
+     * Counts and reports operations which have not succeeded even after retries.
+     * Deletion of already removed event is considered successful.
+     */
+    private int countFailures(List<? extends BatchItemResult<?>> results, String googleCalendarId) {
+        int failuresCount = 0;
+        for (BatchItemResult<?> result : results) {
+            if (result.isSuccessful() || isAlreadyDeleted(result)) {
+                continue;
             }
+            failuresCount++;
+            log.warn("{} in {} has failed: {}",
+                    result.getRequest().getClass().getSimpleName(), googleCalendarId, result.getError());
         }
+        return failuresCount;
+    }
 
-        batchRequest.execute();
-
-        log.info("deleted {} events", events.size());
+    private boolean isAlreadyDeleted(BatchItemResult<?> result) {
+        GoogleJsonError error = result.getError();
+        return result.getRequest() instanceof Calendar.Events.Delete
+                && error != null
+                && (error.getCode() == 404 || error.getCode() == 410);
     }
 
     private String getICalUuid(Event event) {
+        return getPrivateProperty(event, UUID_PROPERTY_NAME);
+    }
+
+    private String getPrivateProperty(Event event, String propertyName) {
         Event.ExtendedProperties extendedProperties = event.getExtendedProperties();
         if (extendedProperties != null) {
             Map<String, String> privateProperties = extendedProperties.getPrivate();
             if (privateProperties != null) {
-                return privateProperties.get(UUID_PROPERTY_NAME);
+                return privateProperties.get(propertyName);
             }
         }
         return null;
     }
 
-    private CalendarListEntry getGoogleCalendar(Calendar googleCalendarService, String googleCalendarName)
-            throws IOException {
-
-        CalendarList calendarList = googleCalendarService.calendarList().list().execute();
-        return calendarList.getItems().stream()
-                .filter(entry -> entry.getSummary().equals(googleCalendarName))
-                .findFirst()
-                .orElseThrow(() -> new IllegalArgumentException("Calendar " + googleCalendarName + " is not found"));
+    /**
+     * Event insertion fails with 404 if calendar does not exist (anymore), its ID is to be resolved again.
+     */
+    private void invalidateCalendarIdIfNotFound(String userId, List<BatchItemResult<Event>> writeResults) {
+        boolean calendarNotFound = writeResults.stream()
+                .anyMatch(result -> result.getRequest() instanceof Calendar.Events.Insert
+                        && result.getError() != null
+                        && result.getError().getCode() == 404);
+        if (calendarNotFound) {
+            calendarIdResolver.invalidate(userId);
+        }
     }
 
 }
@@ -0,0 +1,18 @@
+package ictgc.google;
+
+/**
+ * Defines how Google credentials of users are stored.
+ */
+public enum CredentialStoreType {
+
+    /**
+     * Credentials of all users are stored in a single file, re-written on every change.
+     */
+    FILE,
+
+    /**
+     * Credentials of every user are stored in a separate file, changes of different users are independent.
+     * Credentials stored as {@link CredentialStoreType#FILE} are migrated on start.
+     */
+    PER_USER_FILE
+}
@@ -0,0 +1,68 @@
+package ictgc.google;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.annotation.Nonnull;
+
+import ictgc.domain.CalendarEvent;
+
+/**
+ * Compact hash of the {@link CalendarEvent} fields which are written to Google Calendar.
+ * Stored along with the event, it allows to detect changed events without comparing their content.
+ */
+public final class EventFingerprint {
+
+    /**
+     * Bumped whenever set of hashed fields or their representation in Google Calendar changes,
+     * so that all the previously written events are considered changed.
+     */
+    private static final byte VERSION = 1;
+
+    private static final int HASH_LENGTH = 16;
+
+    private EventFingerprint() {
+    }
+
+    /**
+     * Calculates fingerprint of the event.
+     *
+     * @return URL-safe Base64 string of 22 characters.
+     */
+    @Nonnull
+    public static String of(@Nonnull CalendarEvent calendarEvent) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            messageDigest.update(VERSION);
+            update(messageDigest, calendarEvent.getSummary());
+            update(messageDigest, calendarEvent.getDescription());
+            update(messageDigest, calendarEvent.getStartTime());
+            update(messageDigest, calendarEvent.getEndTime());
+            messageDigest.update((byte) (calendarEvent.isAllDayEvent() ? 1 : 0));
+
+            byte[] hash = Arrays.copyOf(messageDigest.digest(), HASH_LENGTH);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest messageDigest, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        // length prefix keeps adjacent fields apart
+        messageDigest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+        messageDigest.update(bytes);
+    }
+
+    private static void update(MessageDigest messageDigest, ZonedDateTime value) {
+        // the same data as sent to Google: instant and offset
+        messageDigest.update(ByteBuffer.allocate(Long.BYTES + Integer.BYTES)
+                .putLong(value.toEpochSecond())
+                .putInt(value.getOffset().getTotalSeconds())
+                .array());
+    }
+}
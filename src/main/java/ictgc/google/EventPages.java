@@ -0,0 +1,51 @@
+package ictgc.google;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nonnull;
+
+import com.google.api.services.calendar.Calendar;
+import com.google.api.services.calendar.model.Event;
+import com.google.api.services.calendar.model.Events;
+
+/**
+ * Executes events listing following {@code nextPageToken}, passing results to the consumer page by page,
+ * so that listing of any size is never held in memory at once.
+ */
+final class EventPages {
+
+    static final int PAGE_SIZE = 2500;
+
+    private EventPages() {
+    }
+
+    /**
+     * Executes the listing.
+     *
+     * @param listRequest  prepared listing request; its page token and page size are overwritten.
+     * @param pageConsumer receives items of every page.
+     * @return the last page, which holds {@code nextSyncToken} if it was requested.
+     */
+    @Nonnull
+    static Events forEachPage(@Nonnull Calendar.Events.List listRequest, @Nonnull PageConsumer pageConsumer)
+            throws IOException {
+
+        listRequest.setMaxResults(PAGE_SIZE);
+        String pageToken = null;
+        Events page;
+        do {
+            page = listRequest
+                    .setPageToken(pageToken)
+                    .execute();
+            pageConsumer.accept(page.getItems() == null ? Collections.emptyList() : page.getItems());
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+        return page;
+    }
+
+    @FunctionalInterface
+    interface PageConsumer {
+        void accept(List<Event> events) throws IOException;
+    }
+}
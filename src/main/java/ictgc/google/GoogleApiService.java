@@ -2,11 +2,16 @@ package ictgc.google;
 
 import com.google.api.client.auth.oauth2.AuthorizationCodeRequestUrl;
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.CredentialRefreshListener;
 import com.google.api.client.auth.oauth2.StoredCredential;
+import com.google.api.client.auth.oauth2.TokenErrorResponse;
 import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.auth.oauth2.TokenResponseException;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
@@ -15,32 +20,34 @@ import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.calendar.CalendarScopes;
 import ictgc.ApplicationProperties;
 import ictgc.domain.CalendarSynchronizationException;
-import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
 import org.mortbay.jetty.Request;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.handler.AbstractHandler;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Nonnull;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.GeneralSecurityException;
 import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 /**
  * Encapsulates required logic to obtain authorized Google Calendar APi Service.
@@ -58,23 +65,37 @@ public class GoogleApiService {
 
     private static final String CALLBACK_PATH = "/google-calendar-auth-callback";
 
+    private static final String BATCH_PATH_PREFIX = "/batch";
+
+    private static final String INVALID_GRANT_ERROR = "invalid_grant";
+
+    private static final String PER_USER_STORAGE_DIRECTORY = "per-user";
+    private static final String MIGRATED_FILE_SUFFIX = ".migrated";
+
     private final String authorizationRedirectUrl;
     private final HttpTransport httpTransport;
     private final JsonFactory jsonFactory;
     private final DataStore<StoredCredential> credentialDataStore;
     private final GoogleAuthorizationCodeFlow authorizationFlow;
-    private final ConcurrentMap<String, AuthorizationResponseCondition> authorizationResponseConditions =
-            new ConcurrentHashMap<>();
+    private final GoogleQuotaManager quotaManager;
+    private final ApplicationProperties.TokenRefresh tokenRefreshConfig;
+    /**
+     * IDs of users asked for authorization, by authorization state parameter.
+     */
+    private final Map<String, String> pendingAuthorizations = new ConcurrentHashMap<>();
+    private final List<Consumer<String>> authorizationListeners = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, UserCalendarService> calendarServices = new ConcurrentHashMap<>();
 
     @Autowired
-    public GoogleApiService(ApplicationProperties config)
+    public GoogleApiService(ApplicationProperties config, GoogleQuotaManager quotaManager)
             throws GeneralSecurityException, IOException {
 
+        this.quotaManager = quotaManager;
+        this.tokenRefreshConfig = config.getTokenRefresh();
         this.httpTransport = GoogleNetHttpTransport.newTrustedTransport();
         this.jsonFactory = JacksonFactory.getDefaultInstance();
 
-        FileDataStoreFactory dataStoreFactory = new FileDataStoreFactory(config.getAuthorizationStorageDirectory());
-        this.credentialDataStore = StoredCredential.getDefaultDataStore(dataStoreFactory);
+        this.credentialDataStore = createCredentialDataStore(config);
 
         this.authorizationFlow = createAuthorizationFlow(config);
 
@@ -92,6 +113,42 @@ public class GoogleApiService {
         }
     }
 
+    /**
+     * Creates credentials store of configured type. Migrates credentials from single file store
+     * to per-user files store, if the latter is used and the former exists.
+     */
+    @Nonnull
+    private DataStore<StoredCredential> createCredentialDataStore(ApplicationProperties config) throws IOException {
+        File storageDirectory = config.getAuthorizationStorageDirectory();
+        FileDataStoreFactory fileDataStoreFactory = new FileDataStoreFactory(storageDirectory);
+        if (config.getCredentialStoreType() == CredentialStoreType.FILE) {
+            return StoredCredential.getDefaultDataStore(fileDataStoreFactory);
+        }
+
+        DataStore<StoredCredential> perUserDataStore = StoredCredential.getDefaultDataStore(
+                new PerKeyFileDataStoreFactory(new File(storageDirectory, PER_USER_STORAGE_DIRECTORY)));
+
+        File legacyStoreFile = new File(storageDirectory, StoredCredential.DEFAULT_DATA_STORE_ID);
+        if (legacyStoreFile.isFile()) {
+            DataStore<StoredCredential> legacyDataStore = StoredCredential.getDefaultDataStore(fileDataStoreFactory);
+            int migratedCount = 0;
+            for (String userId : legacyDataStore.keySet()) {
+                // credentials stored after a previous, interrupted migration are newer
+                if (!perUserDataStore.containsKey(userId)) {
+                    perUserDataStore.set(userId, legacyDataStore.get(userId));
+                    migratedCount++;
+                }
+            }
+
+            File migratedStoreFile = new File(storageDirectory, legacyStoreFile.getName() + MIGRATED_FILE_SUFFIX);
+            Files.move(legacyStoreFile.toPath(), migratedStoreFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            log.info("{} credentials are migrated to per-user store, previous store is kept as {}",
+                    migratedCount, migratedStoreFile);
+        }
+
+        return perUserDataStore;
+    }
+
     /**
      * Loads client secret and initiates thread-safe authorization flow with offline access.
      */
@@ -108,29 +165,127 @@ public class GoogleApiService {
         return new GoogleAuthorizationCodeFlow.Builder(httpTransport, jsonFactory, clientSecrets, SCOPES)
                 .setCredentialDataStore(credentialDataStore)
                 .setAccessType("offline")
+                .addRefreshListener(new CachedCredentialRefreshListener())
                 .build();
     }
 
     /**
-     * Authorizes application for provided user and creates Calendar Service.
-     * If there are no stored credentials, generates a URL to be provided to user in order to navigate
-     * for authorization, prints the URL to log and causes current thread to wait until user navigates to the URL.
-     * As soon as user authorizes the application via provided URL, the thread is woken up and continues execution
-     * by constructing Google Calendar API Service.
+     * Creates Calendar Service authorized by the user.
+     * If there are no stored credentials, starts authorization: generates a URL to be provided to user in order
+     * to navigate for authorization, prints the URL to log and fails with {@link AuthorizationRequiredException}.
+     * Until user authorizes the application via provided URL, authorization of the user is pending
+     * (see {@link #isAuthorizationPending(String)}). As soon as user authorizes the application,
+     * authorization listeners are notified.
+     * Every request of the service, including parts of batch requests, waits for {@link GoogleQuotaManager}.
+     * Service and credentials are cached per user, so that stored credentials are only read once;
+     * service is thread-safe and may be used by several flows of the user concurrently.
      *
      * @param userId    ID of user to authorize application by.
      * @param userEmail email of user to authorize application by.
      * @return Calendar Service for user.
+     * @throws AuthorizationRequiredException if user has not authorized the application yet.
      */
     @Nonnull
     public com.google.api.services.calendar.Calendar getCalendarService(String userId, String userEmail) {
+        UserCalendarService cachedService = calendarServices.get(userId);
+        if (cachedService != null) {
+            if (isUsable(cachedService.credential)) {
+                return cachedService.calendar;
+            }
+            calendarServices.remove(userId, cachedService);
+        }
+
         Credential credential = authorize(userId, userEmail);
-        return new com.google.api.services.calendar.Calendar.Builder(httpTransport, jsonFactory, credential)
+        com.google.api.services.calendar.Calendar calendar = new com.google.api.services.calendar.Calendar.Builder(
+                httpTransport, jsonFactory, request -> initializeRequest(request, credential, userId))
                 .setApplicationName("ical-to-google-calendar")
                 .build();
+        UserCalendarService service = new UserCalendarService(credential, calendar);
+
+        UserCalendarService existingService = calendarServices.putIfAbsent(userId, service);
+        return (existingService == null) ? calendar : existingService.calendar;
+    }
+
+    private boolean isUsable(Credential credential) {
+        Long expiresInSeconds = credential.getExpiresInSeconds();
+        return credential.getRefreshToken() != null || (expiresInSeconds != null && expiresInSeconds > 60);
+    }
+
+    private void initializeRequest(HttpRequest request, Credential credential, String userId) throws IOException {
+        credential.initialize(request);
+        HttpExecuteInterceptor credentialInterceptor = request.getInterceptor();
+        request.setInterceptor(interceptedRequest -> {
+            // batch request itself is not counted by Google, but each of its parts is
+            if (!interceptedRequest.getUrl().getRawPath().startsWith(BATCH_PATH_PREFIX)) {
+                quotaManager.acquire(userId);
+            }
+            if (credentialInterceptor != null) {
+                credentialInterceptor.intercept(interceptedRequest);
+            }
+        });
+    }
+
+    /**
+     * Refreshes access tokens of cached credentials which are about to expire, so that synchronization
+     * does not wait for token refresh. Failed refreshes are repeated with growing delay, and are tried again
+     * on the next check if all the attempts fail; credentials are only reset if the grant is revoked.
+     */
+    @Scheduled(fixedDelayString = "${ical-to-google-calendar.token-refresh.check-interval}")
+    public void refreshExpiringTokens() {
+        long leadTimeSeconds = tokenRefreshConfig.getLeadTime().getSeconds();
+        calendarServices.forEach((userId, service) -> {
+            Credential credential = service.credential;
+            Long expiresInSeconds = credential.getExpiresInSeconds();
+            if (credential.getRefreshToken() == null
+                    || (expiresInSeconds != null && expiresInSeconds > leadTimeSeconds)) {
+                return;
+            }
+            refreshToken(userId, credential);
+        });
+    }
+
+    private void refreshToken(String userId, Credential credential) {
+        long retryDelay = tokenRefreshConfig.getRetryDelay().toMillis();
+        for (int attempt = 1; attempt <= tokenRefreshConfig.getMaxAttempts(); attempt++) {
+            try {
+                if (credential.refreshToken()) {
+                    log.debug("access token of {} is refreshed", userId);
+                    return;
+                }
+            } catch (TokenResponseException e) {
+                if (isGrantRevoked(e)) {
+                    log.warn("access of {} is revoked, authorization is required", userId);
+                    resetCredentials(userId);
+                    return;
+                }
+                log.warn("attempt {} to refresh access token of {} failed: {}", attempt, userId, e.getMessage());
+            } catch (IOException e) {
+                log.warn("attempt {} to refresh access token of {} failed: {}", attempt, userId, e.getMessage());
+            }
+
+            if (attempt < tokenRefreshConfig.getMaxAttempts()) {
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                retryDelay *= 2;
+            }
+        }
+    }
+
+    /**
+     * Checks if token request failed because refresh token is revoked or expired,
+     * which requires user to authorize the application again.
+     */
+    static boolean isGrantRevoked(@Nonnull TokenResponseException tokenException) {
+        return tokenException.getDetails() != null
+                && INVALID_GRANT_ERROR.equals(tokenException.getDetails().getError());
     }
 
     public void resetCredentials(String userId) {
+        calendarServices.remove(userId);
         try {
             credentialDataStore.delete(userId);
         } catch (IOException e) {
@@ -139,56 +294,117 @@ public class GoogleApiService {
     }
 
     /**
-     * Authorizes the application and returns credentials (either previously stored or newly received).
-     * If there are no stored credentials, generates a URL to be provided to user in order to navigate
-     * for authorization, prints the URL to log and causes current thread to wait until user navigates to the URL.
-     * As soon as user authorizes the application via provided URL, the thread is woken up and continues execution
-     * by returning new credentials.
+     * Checks if user is asked to authorize the application and has not done it yet.
+     */
+    public boolean isAuthorizationPending(@Nonnull String userId) {
+        return pendingAuthorizations.values().contains(userId);
+    }
+
+    /**
+     * Registers a listener to be notified with user ID whenever user authorizes the application.
+     * Listener is called in the thread of authorization server.
+     */
+    public void addAuthorizationListener(@Nonnull Consumer<String> authorizationListener) {
+        authorizationListeners.add(authorizationListener);
+    }
+
+    /**
+     * Returns stored credentials, if any. Otherwise starts authorization (unless it is pending already),
+     * printing authorization URL to log.
      *
      * @param userId    ID of user to get authorization from.
      * @param userEmail email of user to get authorization from.
      * @return credentials given by user.
+     * @throws AuthorizationRequiredException if there are no stored credentials.
      */
     @Nonnull
     private Credential authorize(String userId, String userEmail) {
         try {
             Credential credential = authorizationFlow.loadCredential(userId);
-            if (credential != null
-                    && (credential.getRefreshToken() != null || credential.getExpiresInSeconds() > 60)) {
+            if (credential != null && isUsable(credential)) {
                 return credential;
             }
+        } catch (IOException e) {
+            throw new CalendarSynchronizationException(e);
+        }
+
+        synchronized (pendingAuthorizations) {
+            if (!isAuthorizationPending(userId)) {
+                String state = UUID.randomUUID().toString();
+                pendingAuthorizations.put(state, userId);
+
+                AuthorizationCodeRequestUrl authorizationUrl = authorizationFlow.newAuthorizationUrl()
+                        .setRedirectUri(authorizationRedirectUrl)
+                        .setState(state);
+
+                log.warn("Please open the following address in your browser to authorize {}:", userEmail);
+                log.warn("{}", authorizationUrl);
+            }
+        }
 
-            String conditionId = UUID.randomUUID().toString();
-            AuthorizationResponseCondition authorizationResponseCondition = new AuthorizationResponseCondition();
-            authorizationResponseConditions.putIfAbsent(conditionId, authorizationResponseCondition);
+        throw new AuthorizationRequiredException("Authorization of " + userId + " is pending");
+    }
 
-            AuthorizationCodeRequestUrl authorizationUrl = authorizationFlow.newAuthorizationUrl()
-                    .setRedirectUri(authorizationRedirectUrl)
-                    .setState(conditionId);
+    /**
+     * Exchanges authorization code for credentials and stores them.
+     * Authorization stays pending until credentials are stored, not to start another one meanwhile.
+     */
+    private void completeAuthorization(String state, String userId, String code) throws IOException {
+        TokenResponse tokenResponse = authorizationFlow.newTokenRequest(code)
+                .setRedirectUri(authorizationRedirectUrl)
+                .execute();
 
-            log.warn("Please open the following address in your browser:");
-            log.warn("{}", authorizationUrl);
+        authorizationFlow.createAndStoreCredential(tokenResponse, userId);
+        calendarServices.remove(userId);
+        pendingAuthorizations.remove(state);
 
-            authorizationResponseCondition.waitForAuthorizationCode();
+        log.info("{} has authorized the application", userId);
 
-            if (authorizationResponseCondition.getError() != null) {
-                throw new CalendarSynchronizationException("Authorization error: " +
-                        authorizationResponseCondition.getError());
+        for (Consumer<String> authorizationListener : authorizationListeners) {
+            try {
+                authorizationListener.accept(userId);
+            } catch (RuntimeException e) {
+                log.error("authorization listener failed for " + userId, e);
             }
+        }
+    }
 
-            TokenResponse tokenResponse = authorizationFlow.newTokenRequest(authorizationResponseCondition.getCode())
-                    .setRedirectUri(authorizationRedirectUrl)
-                    .execute();
+    /**
+     * Calendar service of a user along with credential it is authorized by.
+     */
+    private static class UserCalendarService {
+        private final Credential credential;
+        private final com.google.api.services.calendar.Calendar calendar;
 
-            return authorizationFlow.createAndStoreCredential(tokenResponse, userId);
-        } catch (IOException e) {
-            throw new CalendarSynchronizationException(e);
+        UserCalendarService(Credential credential, com.google.api.services.calendar.Calendar calendar) {
+            this.credential = credential;
+            this.calendar = calendar;
+        }
+    }
+
+    /**
+     * Evicts cached service when its credential cannot be refreshed as access is revoked,
+     * so that the next call loads credentials from the store or authorizes again.
+     * Successful refreshes are persisted by the flow and keep the cached credential valid.
+     */
+    private class CachedCredentialRefreshListener implements CredentialRefreshListener {
+
+        @Override
+        public void onTokenResponse(Credential credential, TokenResponse tokenResponse) {
+            // no op
+        }
+
+        @Override
+        public void onTokenErrorResponse(Credential credential, TokenErrorResponse tokenErrorResponse) {
+            if (tokenErrorResponse != null && INVALID_GRANT_ERROR.equals(tokenErrorResponse.getError())) {
+                calendarServices.values().removeIf(service -> service.credential == credential);
+            }
         }
     }
 
     /**
      * Handles HTTP requests. If callback url is requested,
-     * parses code, error and state and notifies waiting thread.
+     * parses code, error and state and completes pending authorization.
      */
     private class CallbackHandler extends AbstractHandler {
 
@@ -208,9 +424,25 @@ public class GoogleApiService {
             String code = request.getParameter("code");
             String state = request.getParameter("state");
 
-            AuthorizationResponseCondition responseCondition = Objects.requireNonNull(
-                    authorizationResponseConditions.remove(state));
-            responseCondition.onAuthorizationResponse(code, error);
+            String userId = (state == null) ? null : pendingAuthorizations.get(state);
+            if (userId == null) {
+                log.warn("unexpected authorization response with state {}", state);
+                return;
+            }
+
+            if (error != null || code == null) {
+                // next synchronization attempt will start a new authorization
+                pendingAuthorizations.remove(state);
+                log.warn("authorization of {} failed: {}", userId, error);
+                return;
+            }
+
+            try {
+                completeAuthorization(state, userId, code);
+            } catch (IOException e) {
+                pendingAuthorizations.remove(state);
+                log.error("failed to complete authorization of " + userId, e);
+            }
         }
 
         private void writeRedirectUrlHtml(HttpServletResponse response) throws IOException {
@@ -222,48 +454,4 @@ public class GoogleApiService {
         }
     }
 
-    /**
-     * {@link Condition} that waits until code and error are provided.
-     */
-    private static class AuthorizationResponseCondition {
-
-        private final Lock lock = new ReentrantLock();
-        private final Condition gotAuthorizationResponse = lock.newCondition();
-
-        @Getter
-        private String code;
-
-        @Getter
-        private String error;
-
-        /**
-         * Causes current thread to wait until code and error are provided.
-         */
-        public void waitForAuthorizationCode() throws IOException {
-            lock.lock();
-            try {
-                while (code == null && error == null) {
-                    gotAuthorizationResponse.awaitUninterruptibly();
-                }
-            } finally {
-                lock.unlock();
-            }
-        }
-
-        /**
-         * Stores code and error and wakes up waiting thread.
-         */
-        public void onAuthorizationResponse(String code, String error) {
-            lock.lock();
-            try {
-                this.code = code;
-                this.error = error;
-
-                gotAuthorizationResponse.signal();
-            } finally {
-                lock.unlock();
-            }
-        }
-    }
-
 }
@@ -0,0 +1,222 @@
+package ictgc.google;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.calendar.Calendar;
+import ictgc.ApplicationProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Executes Google Calendar API operations in batch requests. Operations are split into chunks
+ * not exceeding the configured (and Google's) batch size limit, and chunks are executed
+ * with bounded parallelism. Failure of an operation does not affect other operations,
+ * outcome of every operation is reported individually. Only temporarily failed operations
+ * (see {@link BatchItemResult#isRetryable()}) are retried.
+ */
+@Slf4j
+@Component
+public class GoogleBatchExecutor {
+
+    private final Executor executor;
+    private final int chunkSize;
+    private final int parallelism;
+    private final int maxRetries;
+    private final Duration initialRetryDelay;
+    private final Duration maxRetryDelay;
+
+    @Autowired
+    public GoogleBatchExecutor(
+            @Qualifier("googleBatchTaskExecutor") TaskExecutor executor,
+            ApplicationProperties config) {
+
+        this.executor = executor;
+        this.chunkSize = config.getGoogleBatch().getChunkSize();
+        this.parallelism = config.getGoogleBatch().getParallelism();
+        this.maxRetries = config.getGoogleBatch().getMaxRetries();
+        this.initialRetryDelay = config.getGoogleBatch().getInitialRetryDelay();
+        this.maxRetryDelay = config.getGoogleBatch().getMaxRetryDelay();
+    }
+
+    /**
+     * Executes the operations. Calling thread takes part in execution.
+     * Operations failed temporarily are repeated with exponentially growing jittered delay,
+     * until they succeed or retries budget is exhausted.
+     *
+     * @param googleCalendarService service to create batch requests with.
+     * @param requests              operations to execute.
+     * @param <T>                   type of operations response.
+     * @return results of operations, in the order of provided operations.
+     * @throws IOException if some of operations could not be executed due to batch request failures.
+     */
+    @Nonnull
+    public <T> List<BatchItemResult<T>> execute(
+            @Nonnull Calendar googleCalendarService,
+            @Nonnull List<? extends AbstractGoogleJsonClientRequest<T>> requests) throws IOException {
+
+        List<BatchItemResult<T>> results = new ArrayList<>(requests.size());
+        for (AbstractGoogleJsonClientRequest<T> request : requests) {
+            results.add(new BatchItemResult<>(request));
+        }
+
+        List<BatchItemResult<T>> pendingResults = results;
+        int attempt = 0;
+        while (true) {
+            IOException batchFailure = executeAttempt(googleCalendarService, pendingResults);
+
+            pendingResults = pendingResults.stream()
+                    .filter(BatchItemResult::isRetryable)
+                    .collect(Collectors.toList());
+            if (pendingResults.isEmpty()) {
+                break;
+            }
+
+            if (attempt == maxRetries || !sleepBeforeRetry(attempt)) {
+                log.warn("{} of {} operations failed temporarily, retries are exhausted",
+                        pendingResults.size(), results.size());
+                if (batchFailure != null && pendingResults.stream().anyMatch(result -> !result.isCompleted())) {
+                    throw batchFailure;
+                }
+                break;
+            }
+
+            attempt++;
+            log.info("retrying {} of {} operations, attempt {}", pendingResults.size(), results.size(), attempt);
+        }
+
+        return results;
+    }
+
+    private boolean sleepBeforeRetry(int attempt) {
+        long delay = initialRetryDelay.toMillis() << Math.min(attempt, 30);
+        delay = Math.min(delay, maxRetryDelay.toMillis());
+        // "equal jitter": at least half of the delay, to keep backing off
+        long jitteredDelay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        try {
+            Thread.sleep(jitteredDelay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Executes the operations once.
+     *
+     * @return the last failure of batch request, if any.
+     */
+    private <T> IOException executeAttempt(Calendar googleCalendarService, List<BatchItemResult<T>> results) {
+        Queue<List<BatchItemResult<T>>> chunks = new ConcurrentLinkedQueue<>();
+        for (int index = 0; index < results.size(); index += chunkSize) {
+            chunks.add(results.subList(index, Math.min(index + chunkSize, results.size())));
+        }
+
+        int workersCount = Math.min(parallelism, chunks.size());
+        if (workersCount == 0) {
+            return null;
+        }
+
+        log.debug("executing {} operations in {} batches, {} in parallel",
+                results.size(), chunks.size(), workersCount);
+
+        AtomicReference<IOException> batchFailure = new AtomicReference<>();
+        List<CompletableFuture<Void>> helpers = new ArrayList<>();
+        for (int i = 1; i < workersCount; i++) {
+            helpers.add(CompletableFuture.runAsync(
+                    () -> executeChunks(googleCalendarService, chunks, batchFailure), executor));
+        }
+
+        RuntimeException failure = null;
+        try {
+            executeChunks(googleCalendarService, chunks, batchFailure);
+        } catch (RuntimeException e) {
+            // stop helpers as soon as possible, but let them finish running batches
+            chunks.clear();
+            failure = e;
+        }
+        for (CompletableFuture<Void> helper : helpers) {
+            try {
+                helper.join();
+            } catch (CompletionException e) {
+                chunks.clear();
+                if (failure == null) {
+                    failure = (e.getCause() instanceof RuntimeException)
+                            ? (RuntimeException) e.getCause() : e;
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+        return batchFailure.get();
+    }
+
+    private <T> void executeChunks(
+            Calendar googleCalendarService,
+            Queue<List<BatchItemResult<T>>> chunks,
+            AtomicReference<IOException> batchFailure) {
+
+        List<BatchItemResult<T>> chunk;
+        while ((chunk = chunks.poll()) != null) {
+            try {
+                executeChunk(googleCalendarService, chunk);
+            } catch (IOException e) {
+                // operations of the chunk are not completed and will be retried
+                log.warn("batch request failed: {}", e.getMessage());
+                batchFailure.set(e);
+            }
+        }
+    }
+
+    private <T> void executeChunk(Calendar googleCalendarService, List<BatchItemResult<T>> chunk) throws IOException {
+        BatchRequest batchRequest = googleCalendarService.batch();
+        for (BatchItemResult<T> result : chunk) {
+            result.startAttempt();
+            result.getRequest().queue(batchRequest, new ItemCallback<>(result));
+        }
+        batchRequest.execute();
+    }
+
+    private static class ItemCallback<T> extends JsonBatchCallback<T> {
+
+        private final BatchItemResult<T> result;
+
+        ItemCallback(BatchItemResult<T> result) {
+            this.result = result;
+        }
+
+        @Override
+        public void onSuccess(T response, HttpHeaders responseHeaders) {
+            result.succeed(response);
+        }
+
+        @Override
+        public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+            result.fail(error);
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+package ictgc.google;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.calendar.Calendar;
+import com.google.api.services.calendar.model.Event;
+import com.google.api.services.calendar.model.Events;
+import ictgc.state.EventIndexState;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Local index of events in one Google Calendar, holding ID, ETag and private properties of every event
+ * created by the application. Kept up to date with incremental listings based on sync token,
+ * so that every refresh transfers only events changed since the previous one, including changes
+ * made by the application itself.
+ * <p>
+ * Not thread-safe: calendar is expected to be accessed by one flow at a time.
+ */
+@Slf4j
+class GoogleEventIndex {
+
+    private static final String CANCELLED_STATUS = "cancelled";
+
+    /**
+     * Partial response projection: only data required for matching events and continuing the listing.
+     */
+    private static final String FIELDS = "items(id,etag,status,extendedProperties/private),nextPageToken,nextSyncToken";
+
+    private final String googleCalendarId;
+    private final Predicate<Event> ownedEventFilter;
+    private final Map<String, Event> eventsById = new HashMap<>();
+    private String syncToken;
+
+    /**
+     * @param googleCalendarId ID of indexed calendar.
+     * @param ownedEventFilter selects events created by the application, other events are not indexed.
+     */
+    GoogleEventIndex(@Nonnull String googleCalendarId, @Nonnull Predicate<Event> ownedEventFilter) {
+        this.googleCalendarId = googleCalendarId;
+        this.ownedEventFilter = ownedEventFilter;
+    }
+
+    /**
+     * Brings the index up to date. Uses incremental listing if index has been built before,
+     * otherwise or if Google rejects the sync token, index is rebuilt from the full listing.
+     */
+    void refresh(@Nonnull Calendar googleCalendarService) throws IOException {
+        if (syncToken != null) {
+            try {
+                int changesCount = list(googleCalendarService, syncToken);
+                log.debug("{} changes applied to index of {}", changesCount, googleCalendarId);
+                return;
+            } catch (GoogleJsonResponseException e) {
+                if (e.getStatusCode() != 410) {
+                    throw e;
+                }
+                log.info("sync token of {} has expired, rebuilding index", googleCalendarId);
+            }
+        }
+
+        eventsById.clear();
+        syncToken = null;
+        list(googleCalendarService, null);
+        log.debug("index of {} is rebuilt with {} events", googleCalendarId, eventsById.size());
+    }
+
+    /**
+     * Restores the index from persisted state, so that next refresh is incremental.
+     */
+    void restore(@Nonnull EventIndexState state) {
+        eventsById.clear();
+        for (EventIndexState.IndexedEvent indexedEvent : state.getEvents()) {
+            Event.ExtendedProperties extendedProperties = new Event.ExtendedProperties()
+                    .setPrivate(new HashMap<>(indexedEvent.getPrivateProperties()));
+            eventsById.put(indexedEvent.getId(), new Event()
+                    .setId(indexedEvent.getId())
+                    .setEtag(indexedEvent.getEtag())
+                    .setExtendedProperties(extendedProperties));
+        }
+        syncToken = state.getSyncToken();
+        log.debug("index of {} is restored with {} events", googleCalendarId, eventsById.size());
+    }
+
+    /**
+     * Captures the index to be persisted.
+     *
+     * @return state of the index, or {@code null} if index has not been built yet.
+     */
+    @Nullable
+    EventIndexState toState() {
+        if (syncToken == null) {
+            return null;
+        }
+        List<EventIndexState.IndexedEvent> indexedEvents = new ArrayList<>(eventsById.size());
+        for (Event event : eventsById.values()) {
+            Event.ExtendedProperties extendedProperties = event.getExtendedProperties();
+            Map<String, String> privateProperties = (extendedProperties == null)
+                    ? null : extendedProperties.getPrivate();
+            if (privateProperties == null) {
+                privateProperties = new HashMap<>();
+            }
+            indexedEvents.add(new EventIndexState.IndexedEvent(event.getId(), event.getEtag(), privateProperties));
+        }
+        return new EventIndexState(syncToken, indexedEvents);
+    }
+
+    /**
+     * Events created by the application, as of the latest refresh.
+     */
+    @Nonnull
+    List<Event> getEvents() {
+        return new ArrayList<>(eventsById.values());
+    }
+
+    private int list(Calendar googleCalendarService, String currentSyncToken) throws IOException {
+        int[] itemsCount = new int[1];
+        Calendar.Events.List listRequest = googleCalendarService.events().list(googleCalendarId)
+                .setSingleEvents(Boolean.TRUE)
+                .setSyncToken(currentSyncToken)
+                .setFields(FIELDS);
+        Events lastPage = EventPages.forEachPage(listRequest, events -> {
+            events.forEach(this::apply);
+            itemsCount[0] += events.size();
+        });
+
+        // token is only provided with the last page
+        syncToken = lastPage.getNextSyncToken();
+        return itemsCount[0];
+    }
+
+    private void apply(Event event) {
+        if (CANCELLED_STATUS.equals(event.getStatus()) || !ownedEventFilter.test(event)) {
+            eventsById.remove(event.getId());
+        } else {
+            eventsById.put(event.getId(), event);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package ictgc.google;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nonnull;
+
+import ictgc.ApplicationProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Limits rate of Google API requests of the whole application (sharing project quota) and of every user,
+ * using token buckets. When requests have to wait for the project quota, users are served in round-robin order,
+ * so that a user with many flows does not starve the others. Thread-safe.
+ */
+@Slf4j
+@Component
+public class GoogleQuotaManager {
+
+    private static final long MAX_WAIT_STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition quotaReleased = lock.newCondition();
+
+    private final TokenBucket projectBucket;
+    private final double userRequestsPerSecond;
+    private final Map<String, TokenBucket> userBuckets = new HashMap<>();
+
+    /**
+     * Waiting requests of every user, in arrival order.
+     */
+    private final Map<String, Queue<Object>> userWaiters = new HashMap<>();
+
+    /**
+     * Users with waiting requests, in the order they are to be served.
+     */
+    private final Set<String> usersRotation = new LinkedHashSet<>();
+
+    private final AtomicLong requestsCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong waitTimeNanos = new AtomicLong();
+
+    @Autowired
+    public GoogleQuotaManager(ApplicationProperties config) {
+        ApplicationProperties.GoogleQuota quotaConfig = config.getGoogleQuota();
+        this.projectBucket = new TokenBucket(quotaConfig.getProjectRequestsPerSecond());
+        this.userRequestsPerSecond = quotaConfig.getUserRequestsPerSecond();
+    }
+
+    /**
+     * Blocks until the request of the user is allowed by both project and user quotas.
+     *
+     * @throws InterruptedIOException if thread is interrupted while waiting.
+     */
+    public void acquire(@Nonnull String userId) throws InterruptedIOException {
+        long startTime = System.nanoTime();
+        requestsCount.incrementAndGet();
+
+        lock.lock();
+        try {
+            TokenBucket userBucket = userBuckets.computeIfAbsent(
+                    userId, id -> new TokenBucket(userRequestsPerSecond));
+
+            if (usersRotation.isEmpty() && projectBucket.hasToken() && userBucket.hasToken()) {
+                projectBucket.consume();
+                userBucket.consume();
+                return;
+            }
+            throttledCount.incrementAndGet();
+
+            Object waiter = new Object();
+            userWaiters.computeIfAbsent(userId, id -> new ArrayDeque<>()).add(waiter);
+            usersRotation.add(userId);
+            try {
+                while (!tryGrant(userId, waiter, userBucket)) {
+                    long delay = Math.max(projectBucket.nanosUntilToken(), userBucket.nanosUntilToken());
+                    quotaReleased.awaitNanos(Math.max(Math.min(delay, MAX_WAIT_STEP_NANOS), 1));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                removeWaiter(userId, waiter);
+                throw new InterruptedIOException("Interrupted while waiting for Google API quota");
+            }
+        } finally {
+            lock.unlock();
+            waitTimeNanos.addAndGet(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Grants the request if it is the first waiting one of the user, and the user is the first one in rotation
+     * having user quota available.
+     */
+    private boolean tryGrant(String userId, Object waiter, TokenBucket userBucket) {
+        if (userWaiters.get(userId).peek() != waiter || !userBucket.hasToken()) {
+            return false;
+        }
+        for (String rotationUserId : usersRotation) {
+            if (rotationUserId.equals(userId)) {
+                break;
+            }
+            if (userBuckets.get(rotationUserId).hasToken()) {
+                // another user is ahead and can be served
+                return false;
+            }
+        }
+        if (!projectBucket.hasToken()) {
+            return false;
+        }
+        projectBucket.consume();
+        userBucket.consume();
+
+        removeWaiter(userId, waiter);
+        if (userWaiters.containsKey(userId)) {
+            // move user to the end of rotation
+            usersRotation.remove(userId);
+            usersRotation.add(userId);
+        }
+        quotaReleased.signalAll();
+        return true;
+    }
+
+    private void removeWaiter(String userId, Object waiter) {
+        Queue<Object> waiters = userWaiters.get(userId);
+        waiters.remove(waiter);
+        // user keeps the place in rotation while other requests of the user are waiting
+        if (waiters.isEmpty()) {
+            userWaiters.remove(userId);
+            usersRotation.remove(userId);
+        }
+        quotaReleased.signalAll();
+    }
+
+    /**
+     * Total number of requests passed through the manager.
+     */
+    public long getRequestsCount() {
+        return requestsCount.get();
+    }
+
+    /**
+     * Number of requests which had to wait for quota.
+     */
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    /**
+     * Total time requests spent waiting for quota, in milliseconds.
+     */
+    public long getWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitTimeNanos.get());
+    }
+
+    /**
+     * Token bucket with capacity of one second of requests. Not thread-safe.
+     */
+    private static class TokenBucket {
+
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefillTime;
+
+        TokenBucket(double requestsPerSecond) {
+            this.tokensPerNano = requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(requestsPerSecond, 1);
+            this.tokens = capacity;
+            this.lastRefillTime = System.nanoTime();
+        }
+
+        boolean hasToken() {
+            refill();
+            return tokens >= 1;
+        }
+
+        /**
+         * Takes one token, to be called only if {@link #hasToken()} is confirmed.
+         */
+        void consume() {
+            tokens -= 1;
+        }
+
+        long nanosUntilToken() {
+            refill();
+            return (tokens >= 1) ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefillTime) * tokensPerNano);
+            lastRefillTime = now;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ictgc.google;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Statistics of operations performed on Google Calendar during one merge.
+ */
+@Getter
+@ToString
+public class MergeResult {
+
+    /**
+     * Number of events created.
+     */
+    private final int insertedCount;
+
+    /**
+     * Number of existing events updated with new data.
+     */
+    private final int updatedCount;
+
+    /**
+     * Number of existing events removed.
+     */
+    private final int deletedCount;
+
+    /**
+     * Number of existing events which were up to date and left untouched.
+     */
+    private final int unchangedCount;
+
+    /**
+     * Number of operations which have failed permanently or after exhausting retries.
+     * Corresponding events are left not synchronized.
+     */
+    private final int failedCount;
+
+    public MergeResult(int insertedCount, int updatedCount, int deletedCount, int unchangedCount, int failedCount) {
+        this.insertedCount = insertedCount;
+        this.updatedCount = updatedCount;
+        this.deletedCount = deletedCount;
+        this.unchangedCount = unchangedCount;
+        this.failedCount = failedCount;
+    }
+}
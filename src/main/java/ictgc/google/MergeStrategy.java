@@ -0,0 +1,18 @@
+package ictgc.google;
+
+/**
+ * Defines how calendar events are merged into Google Calendar.
+ */
+public enum MergeStrategy {
+
+    /**
+     * All previously created events are deleted and all the events are created again.
+     */
+    RECREATE,
+
+    /**
+     * Existing events are matched to calendar events by their iCalendar UUID,
+     * and only missing, changed or obsolete events are inserted, updated or deleted.
+     */
+    INCREMENTAL
+}
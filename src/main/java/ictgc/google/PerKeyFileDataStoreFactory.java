@@ -0,0 +1,239 @@
+package ictgc.google;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+
+import com.google.api.client.util.IOUtils;
+import com.google.api.client.util.store.AbstractDataStore;
+import com.google.api.client.util.store.AbstractDataStoreFactory;
+import com.google.api.client.util.store.DataStore;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Data store factory which keeps every value in a separate file, in a directory per data store.
+ * Values are written to a temporary file first, flushed to the storage device and then atomically moved
+ * in place, thus readers never observe partially written values, even after a crash, and do not need
+ * any locking. Writes of different keys are independent; writes of the same key are serialized.
+ */
+@Slf4j
+public class PerKeyFileDataStoreFactory extends AbstractDataStoreFactory {
+
+    private static final String VALUE_FILE_SUFFIX = ".bin";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private final File baseDirectory;
+
+    public PerKeyFileDataStoreFactory(@Nonnull File baseDirectory) throws IOException {
+        this.baseDirectory = baseDirectory;
+        createOwnerOnlyDirectory(baseDirectory);
+    }
+
+    @Override
+    protected <V extends Serializable> DataStore<V> createDataStore(String id) throws IOException {
+        return new PerKeyFileDataStore<>(this, id, new File(baseDirectory, id));
+    }
+
+    private static void createOwnerOnlyDirectory(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        // as FileDataStoreFactory, credentials are only accessible by the owner
+        directory.setReadable(false, false);
+        directory.setWritable(false, false);
+        directory.setExecutable(false, false);
+        directory.setReadable(true, true);
+        directory.setWritable(true, true);
+        directory.setExecutable(true, true);
+    }
+
+    private static class PerKeyFileDataStore<V extends Serializable> extends AbstractDataStore<V> {
+
+        private final Path directory;
+        private final ConcurrentMap<String, ReentrantLock> keyLocks = new ConcurrentHashMap<>();
+
+        PerKeyFileDataStore(PerKeyFileDataStoreFactory dataStoreFactory, String id, File directory)
+                throws IOException {
+
+            super(dataStoreFactory, id);
+            createOwnerOnlyDirectory(directory);
+            this.directory = directory.toPath();
+        }
+
+        @Override
+        public Set<String> keySet() throws IOException {
+            Set<String> keys = new HashSet<>();
+            for (Path valueFile : listValueFiles()) {
+                keys.add(decodeKey(valueFile));
+            }
+            return Collections.unmodifiableSet(keys);
+        }
+
+        @Override
+        public Collection<V> values() throws IOException {
+            List<V> values = new ArrayList<>();
+            for (Path valueFile : listValueFiles()) {
+                V value = read(valueFile);
+                if (value != null) {
+                    values.add(value);
+                }
+            }
+            return Collections.unmodifiableList(values);
+        }
+
+        @Override
+        public V get(String key) throws IOException {
+            return (key == null) ? null : read(getValueFile(key));
+        }
+
+        @Override
+        public DataStore<V> set(String key, V value) throws IOException {
+            if (key == null || value == null) {
+                throw new NullPointerException("Key and value are required");
+            }
+
+            byte[] bytes = IOUtils.serialize(value);
+            Path valueFile = getValueFile(key);
+            Path tempFile = directory.resolve(UUID.randomUUID() + TEMP_FILE_SUFFIX);
+            ReentrantLock keyLock = getKeyLock(key);
+            keyLock.lock();
+            try {
+                try {
+                    write(tempFile, bytes);
+                    try {
+                        Files.move(tempFile, valueFile,
+                                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(tempFile, valueFile, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } finally {
+                    Files.deleteIfExists(tempFile);
+                }
+                syncDirectory();
+            } finally {
+                keyLock.unlock();
+            }
+            return this;
+        }
+
+        /**
+         * Writes the file and flushes it to the storage device, so that it is complete once renamed.
+         */
+        private void write(Path file, byte[] bytes) throws IOException {
+            try (FileChannel channel = FileChannel.open(
+                    file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+        }
+
+        /**
+         * Flushes the directory entries, so that the rename survives a crash.
+         * Not supported on some platforms, then the rename is only as durable as the file system makes it.
+         */
+        private void syncDirectory() {
+            try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                log.trace("unable to sync directory {}", directory, e);
+            }
+        }
+
+        @Override
+        public DataStore<V> clear() throws IOException {
+            for (Path valueFile : listValueFiles()) {
+                delete(decodeKey(valueFile));
+            }
+            return this;
+        }
+
+        @Override
+        public DataStore<V> delete(String key) throws IOException {
+            if (key != null) {
+                ReentrantLock keyLock = getKeyLock(key);
+                keyLock.lock();
+                try {
+                    Files.deleteIfExists(getValueFile(key));
+                } finally {
+                    keyLock.unlock();
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Locks guard file I/O, thus they are not monitors, which would pin virtual threads while blocked.
+         */
+        private ReentrantLock getKeyLock(String key) {
+            return keyLocks.computeIfAbsent(key, k -> new ReentrantLock());
+        }
+
+        /**
+         * Reads the value; file which cannot be deserialized (e.g. written partially before a crash,
+         * or by an incompatible version) is treated as absent.
+         */
+        private V read(Path valueFile) throws IOException {
+            byte[] bytes;
+            try {
+                bytes = Files.readAllBytes(valueFile);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+            try {
+                return IOUtils.deserialize(bytes);
+            } catch (IOException | RuntimeException e) {
+                log.warn("unable to read " + valueFile + ", it is ignored", e);
+                return null;
+            }
+        }
+
+        private List<Path> listValueFiles() throws IOException {
+            try (Stream<Path> files = Files.list(directory)) {
+                List<Path> valueFiles = new ArrayList<>();
+                files.filter(file -> file.getFileName().toString().endsWith(VALUE_FILE_SUFFIX))
+                        .forEach(valueFiles::add);
+                return valueFiles;
+            }
+        }
+
+        /**
+         * Keys are encoded to be safe file names regardless of their content.
+         */
+        private Path getValueFile(String key) {
+            String fileName = Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(key.getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(fileName + VALUE_FILE_SUFFIX);
+        }
+
+        private String decodeKey(Path valueFile) {
+            String fileName = valueFile.getFileName().toString();
+            String encodedKey = fileName.substring(0, fileName.length() - VALUE_FILE_SUFFIX.length());
+            return new String(Base64.getUrlDecoder().decode(encodedKey), StandardCharsets.UTF_8);
+        }
+    }
+}
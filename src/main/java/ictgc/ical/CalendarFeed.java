@@ -0,0 +1,81 @@
+package ictgc.ical;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import lombok.Getter;
+
+/**
+ * Result of iCalendar feed retrieval by {@link CalendarFeedFetcher}.
+ * Holds the spooled feed content, thus must be closed after the content is consumed.
+ */
+public class CalendarFeed implements Closeable {
+
+    /**
+     * {@code true} if server confirmed that feed has not been changed since previous retrieval.
+     * Content is not transferred in this case.
+     */
+    @Getter
+    private final boolean notModified;
+
+    /**
+     * Spooled feed body, {@code null} if {@link CalendarFeed#notModified} is {@code true}.
+     */
+    @Nullable
+    private final FeedContent content;
+
+    /**
+     * Validators to be used for the next retrieval of this feed.
+     */
+    @Getter
+    @Nonnull
+    private final FeedValidators validators;
+
+    private CalendarFeed(boolean notModified, @Nullable FeedContent content, @Nonnull FeedValidators validators) {
+        this.notModified = notModified;
+        this.content = content;
+        this.validators = validators;
+    }
+
+    static CalendarFeed notModified(@Nonnull FeedValidators validators) {
+        return new CalendarFeed(true, null, validators);
+    }
+
+    static CalendarFeed modified(@Nonnull FeedContent content, @Nonnull FeedValidators validators) {
+        return new CalendarFeed(false, content, validators);
+    }
+
+    /**
+     * Digest of the feed body, ignoring volatile properties.
+     * Equal digests guarantee that feeds produce equal events.
+     */
+    @Nonnull
+    public String getDigest() {
+        return getModifiedContent().getDigest();
+    }
+
+    /**
+     * Opens a new stream to read the feed body.
+     */
+    @Nonnull
+    public InputStream openContent() throws IOException {
+        return getModifiedContent().openStream();
+    }
+
+    private FeedContent getModifiedContent() {
+        if (content == null) {
+            throw new IllegalStateException("Feed is not modified and has no content");
+        }
+        return content;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (content != null) {
+            content.close();
+        }
+    }
+}
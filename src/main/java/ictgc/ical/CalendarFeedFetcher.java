@@ -0,0 +1,169 @@
+package ictgc.ical;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+
+import ictgc.ApplicationProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Retrieves iCalendar feeds using conditional requests.
+ * If validators of previous retrieval are known, they are sent to the server,
+ * and content is not transferred when server responds with {@code 304 Not Modified}.
+ * Otherwise content is spooled and digested while being downloaded.
+ * <p>
+ * Uses a shared HTTP client with pooled keep-alive connections and transparent
+ * gzip / deflate decompression.
+ */
+@Slf4j
+@Service
+public class CalendarFeedFetcher {
+
+    private final Set<String> volatileProperties;
+    private final long maxResponseSize;
+    private final RequestConfig defaultRequestConfig;
+    private final CloseableHttpClient httpClient;
+    private final AtomicLong fetchesCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+
+    @Autowired
+    public CalendarFeedFetcher(ApplicationProperties config) {
+        this.volatileProperties = config.getVolatileFeedProperties().stream()
+                .map(property -> property.toUpperCase(Locale.ROOT))
+                .collect(Collectors.toSet());
+
+        ApplicationProperties.FeedClient feedClientConfig = config.getFeedClient();
+        this.maxResponseSize = feedClientConfig.getMaxResponseSize().toBytes();
+
+        int connectTimeout = (int) feedClientConfig.getConnectTimeout().toMillis();
+        this.defaultRequestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout((int) feedClientConfig.getReadTimeout().toMillis())
+                .build();
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(feedClientConfig.getMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(feedClientConfig.getMaxConnectionsPerHost());
+
+        // content compression is enabled by default: Accept-Encoding is sent and response is decoded
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(defaultRequestConfig)
+                .evictIdleConnections(feedClientConfig.getIdleConnectionTimeout().toMillis(), TimeUnit.MILLISECONDS)
+                .evictExpiredConnections()
+                .build();
+    }
+
+    /**
+     * Retrieves the feed.
+     *
+     * @param iCalUrl     URL of the feed.
+     * @param validators  validators of previous retrieval, if any.
+     * @param readTimeout socket read timeout for this feed; client default is used if not provided.
+     * @return retrieved feed with spooled content; not modified feed if server confirmed
+     * validators are still valid.
+     * @throws IOException in case of connection issues, unsuccessful response or too large content.
+     */
+    @Nonnull
+    public CalendarFeed fetch(
+            @Nonnull String iCalUrl,
+            @Nullable FeedValidators validators,
+            @Nullable Duration readTimeout) throws IOException {
+
+        HttpGet request = new HttpGet(iCalUrl);
+        if (validators != null) {
+            if (validators.getETag() != null) {
+                request.setHeader(HttpHeaders.IF_NONE_MATCH, validators.getETag());
+            }
+            if (validators.getLastModified() != null) {
+                request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, validators.getLastModified());
+            }
+        }
+        if (readTimeout != null) {
+            request.setConfig(RequestConfig.copy(defaultRequestConfig)
+                    .setSocketTimeout((int) readTimeout.toMillis())
+                    .build());
+        }
+
+        long fetches = fetchesCount.incrementAndGet();
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED && validators != null) {
+                long notModified = notModifiedCount.incrementAndGet();
+                log.debug("{} is not modified, {} of {} fetches were not modified", iCalUrl, notModified, fetches);
+
+                return CalendarFeed.notModified(validators);
+            }
+
+            if (statusCode < 200 || statusCode >= 300) {
+                throw new IOException("Server returned " + response.getStatusLine() + " for " + iCalUrl);
+            }
+
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                throw new IOException("Server returned no content for " + iCalUrl);
+            }
+            if (entity.getContentLength() > maxResponseSize) {
+                throw new IOException("Feed " + iCalUrl + " of " + entity.getContentLength()
+                        + " bytes exceeds maximum size of " + maxResponseSize + " bytes");
+            }
+
+            FeedValidators newValidators = new FeedValidators(
+                    getHeaderValue(response, HttpHeaders.ETAG),
+                    getHeaderValue(response, HttpHeaders.LAST_MODIFIED));
+
+            try (InputStream contentStream = entity.getContent()) {
+                FeedContent content = FeedContent.read(contentStream, volatileProperties, maxResponseSize);
+                return CalendarFeed.modified(content, newValidators);
+            }
+        }
+    }
+
+    private String getHeaderValue(CloseableHttpResponse response, String headerName) {
+        Header header = response.getFirstHeader(headerName);
+        return (header == null) ? null : header.getValue();
+    }
+
+    /**
+     * Total number of feed retrievals performed.
+     */
+    public long getFetchesCount() {
+        return fetchesCount.get();
+    }
+
+    /**
+     * Number of feed retrievals answered with {@code 304 Not Modified}.
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+}
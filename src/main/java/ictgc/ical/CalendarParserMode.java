@@ -0,0 +1,24 @@
+package ictgc.ical;
+
+/**
+ * Defines how {@code VEVENT} components of iCalendar feed are parsed.
+ */
+public enum CalendarParserMode {
+
+    /**
+     * Every event is parsed with ical4j into complete object model.
+     */
+    ICAL4J,
+
+    /**
+     * Only the fields required by the application are extracted from content lines.
+     * Events which cannot be reliably handled this way are parsed with ical4j.
+     */
+    LIGHTWEIGHT,
+
+    /**
+     * Events are parsed in both ways, differences are logged and ical4j result is used.
+     * Intended to validate {@link CalendarParserMode#LIGHTWEIGHT} mode on real feeds.
+     */
+    COMPARE
+}
@@ -5,71 +5,326 @@ import ictgc.domain.CalendarEvents;
 import ictgc.domain.CalendarSynchronizationException;
 import lombok.extern.slf4j.Slf4j;
 import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.CalendarParserFactory;
 import net.fortuna.ical4j.data.ParserException;
 import net.fortuna.ical4j.model.*;
 import net.fortuna.ical4j.model.component.VEvent;
 import net.fortuna.ical4j.model.property.DateProperty;
 import net.fortuna.ical4j.model.property.DtEnd;
 import net.fortuna.ical4j.model.property.DtStart;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * Reads the iCalendar feed and produces {@link CalendarEvents}.
+ * <p>
+ * The feed is processed as a stream: content lines are scanned and only one top-level component
+ * is kept in memory at a time. Every {@code VEVENT} is parsed separately, while
+ * {@code VTIMEZONE} definitions are registered in a time zone registry shared by all events of the feed.
+ * Thus time zones are expected to be defined before the events which reference them, as all
+ * major feed providers do.
+ * <p>
+ * Events are parsed either with ical4j or with {@link LightweightEventExtractor}, see {@link CalendarParserMode}.
  */
 @Slf4j
 @Service
 public class CalendarReader {
 
+    private static final String CALENDAR_PREFIX = "BEGIN:VCALENDAR\r\nVERSION:2.0\r\n";
+    private static final String CALENDAR_SUFFIX = "END:VCALENDAR\r\n";
+    private static final String LINE_SEPARATOR = "\r\n";
+
+    private final LightweightEventExtractor lightweightEventExtractor = new LightweightEventExtractor();
+    private final TimeZoneCache timeZoneCache;
+    private final AtomicLong lightweightFallbacksCount = new AtomicLong();
+    private final AtomicLong lightweightMismatchesCount = new AtomicLong();
+
+    @Autowired
+    public CalendarReader(TimeZoneCache timeZoneCache) {
+        this.timeZoneCache = timeZoneCache;
+    }
+
     /**
-     * Reads the feed and generates {@link CalendarEvents}.
+     * Reads UTF-8 encoded feed from the stream and generates {@link CalendarEvents}.
+     * The stream is not closed by this method.
      *
-     * @param calendarBody feed to parse
+     * @param calendarStream feed to parse
+     * @param parserMode     defines how events are parsed
      * @return events in provided feed
      */
     @Nonnull
-    public CalendarEvents readCalendar(String calendarBody, ZoneId defaultTimeZone) {
+    public CalendarEvents readCalendar(
+            InputStream calendarStream, ZoneId defaultTimeZone, CalendarParserMode parserMode) {
+
+        return readCalendar(
+                new InputStreamReader(calendarStream, StandardCharsets.UTF_8), defaultTimeZone, parserMode);
+    }
+
+    @Nonnull
+    private CalendarEvents readCalendar(Reader calendarReader, ZoneId defaultTimeZone, CalendarParserMode parserMode) {
+        List<CalendarEvent> calendarEvents = new ArrayList<>();
+        readCalendar(calendarReader, defaultTimeZone, parserMode, calendarEvents::add);
+        return new CalendarEvents(calendarEvents);
+    }
+
+    /**
+     * Reads the feed and emits every event to the consumer as soon as it is parsed.
+     * Memory consumption is defined by the largest single component of the feed.
+     * The reader is not closed by this method.
+     *
+     * @param calendarReader feed to parse
+     * @param parserMode     defines how events are parsed
+     * @param eventConsumer  receiver of parsed events
+     */
+    public void readCalendar(
+            Reader calendarReader,
+            ZoneId defaultTimeZone,
+            CalendarParserMode parserMode,
+            Consumer<CalendarEvent> eventConsumer) {
+
         try {
-            CalendarBuilder calendarBuilder = new CalendarBuilder();
-            Calendar iCalendar = calendarBuilder.build(new StringReader(calendarBody));
+            FeedParser feedParser = new FeedParser(defaultTimeZone, parserMode);
 
-            ComponentList<VEvent> iCalEvents = iCalendar.getComponents(Component.VEVENT);
-            List<CalendarEvent> calendarEvents = new ArrayList<>();
-            for (VEvent iCalEvent : iCalEvents) {
-                DtStart dtStartDate = iCalEvent.getStartDate();
-                DtEnd dtEndDate = iCalEvent.getEndDate(false);
-
-                calendarEvents.add(CalendarEvent.builder()
-                        .summary(iCalEvent.getSummary().getValue())
-                        .description(iCalEvent.getDescription().getValue())
-                        .uuid(iCalEvent.getUid().getValue())
-                        .startTime(datePropertyToZonedDateTime(dtStartDate, defaultTimeZone))
-                        .endTime(datePropertyToZonedDateTime((dtEndDate == null) ? dtStartDate : dtEndDate, defaultTimeZone))
-                        .allDayEvent(!(dtStartDate.getDate() instanceof DateTime))
-                        .build());
+            BufferedReader lineReader = new BufferedReader(calendarReader);
+            List<String> componentLines = null;
+            String componentName = null;
+            String line;
+            while ((line = lineReader.readLine()) != null) {
+                if (componentLines == null) {
+                    componentName = getBegunComponentName(line);
+                    if (componentName != null) {
+                        componentLines = new ArrayList<>();
+                        componentLines.add(line);
+                    }
+                    continue;
+                }
+
+                componentLines.add(line);
+
+                if (isComponentEnd(line, componentName)) {
+                    if (Component.VTIMEZONE.equals(componentName)) {
+                        feedParser.addTimeZone(componentLines);
+                    } else {
+                        eventConsumer.accept(feedParser.parseEvent(componentLines));
+                    }
+                    componentLines = null;
+                }
             }
 
-            return new CalendarEvents(calendarEvents);
+            if (componentLines != null) {
+                throw new CalendarSynchronizationException("Unexpected end of feed inside of " + componentName);
+            }
         } catch (IOException | ParserException e) {
             throw new CalendarSynchronizationException(e);
         }
     }
 
-    private ZonedDateTime datePropertyToZonedDateTime(
-            DateProperty dateProperty,
-            ZoneId defaultTimeZone) {
+    /**
+     * Number of events which lightweight parser could not handle and which were parsed by ical4j instead.
+     */
+    public long getLightweightFallbacksCount() {
+        return lightweightFallbacksCount.get();
+    }
+
+    /**
+     * Number of events which were parsed differently by lightweight parser and ical4j,
+     * in {@link CalendarParserMode#COMPARE} mode.
+     */
+    public long getLightweightMismatchesCount() {
+        return lightweightMismatchesCount.get();
+    }
+
+    private String getBegunComponentName(String line) {
+        String trimmedLine = line.trim();
+        if (trimmedLine.equalsIgnoreCase("BEGIN:" + Component.VEVENT)) {
+            return Component.VEVENT;
+        }
+        if (trimmedLine.equalsIgnoreCase("BEGIN:" + Component.VTIMEZONE)) {
+            return Component.VTIMEZONE;
+        }
+        return null;
+    }
+
+    private boolean isComponentEnd(String line, String componentName) {
+        return line.trim().equalsIgnoreCase("END:" + componentName);
+    }
+
+    /**
+     * Parses components of a single feed. Time zone definitions are registered with ical4j lazily,
+     * only when the first event is to be parsed by ical4j. Time zones built from definitions
+     * and resolved zone IDs are shared across feeds via {@link TimeZoneCache}.
+     */
+    private class FeedParser {
+
+        private final ZoneId defaultTimeZone;
+        private final CalendarParserMode parserMode;
+        private final List<List<String>> pendingTimeZones = new ArrayList<>();
+        private final Map<String, String> timeZoneFingerprints = new HashMap<>();
+        private TimeZoneRegistry timeZoneRegistry;
+        private CalendarBuilder calendarBuilder;
 
-        TimeZone timeZone = dateProperty.getTimeZone();
-        return ZonedDateTime.ofInstant(
-                dateProperty.getDate().toInstant(),
-                (timeZone == null) ? defaultTimeZone : timeZone.toZoneId());
+        FeedParser(ZoneId defaultTimeZone, CalendarParserMode parserMode) {
+            this.defaultTimeZone = defaultTimeZone;
+            this.parserMode = parserMode;
+        }
+
+        void addTimeZone(List<String> componentLines) {
+            String tzId = getTimeZoneId(componentLines);
+            if (tzId != null) {
+                timeZoneFingerprints.put(tzId, TimeZoneCache.fingerprint(componentLines));
+            }
+
+            if (calendarBuilder == null) {
+                pendingTimeZones.add(componentLines);
+            } else {
+                registerTimeZone(componentLines, tzId);
+            }
+        }
+
+        CalendarEvent parseEvent(List<String> componentLines) throws IOException, ParserException {
+            if (parserMode == CalendarParserMode.ICAL4J) {
+                return parseEventWithIcal4j(componentLines);
+            }
+
+            CalendarEvent lightweightEvent = lightweightEventExtractor.extract(
+                    componentLines, defaultTimeZone, this::resolveZoneId);
+            if (lightweightEvent == null) {
+                long fallbacks = lightweightFallbacksCount.incrementAndGet();
+                log.debug("event is not supported by lightweight parser, falling back to ical4j ({} in total)",
+                        fallbacks);
+                return parseEventWithIcal4j(componentLines);
+            }
+
+            if (parserMode == CalendarParserMode.COMPARE) {
+                CalendarEvent ical4jEvent = parseEventWithIcal4j(componentLines);
+                if (!ical4jEvent.equals(lightweightEvent)) {
+                    long mismatches = lightweightMismatchesCount.incrementAndGet();
+                    log.warn("lightweight parser result differs from ical4j for event {} ({} in total): {} vs {}",
+                            ical4jEvent.getUuid(), mismatches, lightweightEvent, ical4jEvent);
+                }
+                return ical4jEvent;
+            }
+
+            return lightweightEvent;
+        }
+
+        private CalendarEvent parseEventWithIcal4j(List<String> componentLines) throws IOException, ParserException {
+            if (calendarBuilder == null) {
+                timeZoneRegistry = TimeZoneRegistryFactory.getInstance().createRegistry();
+                calendarBuilder = new CalendarBuilder(
+                        CalendarParserFactory.getInstance().createParser(), timeZoneRegistry);
+                for (List<String> timeZoneLines : pendingTimeZones) {
+                    registerTimeZone(timeZoneLines, getTimeZoneId(timeZoneLines));
+                }
+                pendingTimeZones.clear();
+            }
+
+            Calendar iCalendar = buildComponent(componentLines);
+            ComponentList<VEvent> iCalEvents = iCalendar.getComponents(Component.VEVENT);
+            return toCalendarEvent(iCalEvents.get(0));
+        }
+
+        /**
+         * Registers time zone definition in the registry, reusing previously built time zone if
+         * exactly the same definition has been seen before.
+         */
+        private void registerTimeZone(List<String> componentLines, String tzId) {
+            if (tzId == null) {
+                // let ical4j decide what to do with such a definition
+                buildComponentUnchecked(componentLines);
+                return;
+            }
+
+            TimeZone timeZone = timeZoneCache.getTimeZone(timeZoneFingerprints.get(tzId), () -> {
+                // VTIMEZONE components are registered in the registry by the builder itself
+                buildComponentUnchecked(componentLines);
+                return timeZoneRegistry.getTimeZone(tzId);
+            });
+            if (timeZone != null) {
+                timeZoneRegistry.register(timeZone);
+            }
+        }
+
+        private Calendar buildComponent(List<String> componentLines) throws IOException, ParserException {
+            StringBuilder componentContent = new StringBuilder(CALENDAR_PREFIX);
+            for (String componentLine : componentLines) {
+                componentContent.append(componentLine).append(LINE_SEPARATOR);
+            }
+            componentContent.append(CALENDAR_SUFFIX);
+            return calendarBuilder.build(new StringReader(componentContent.toString()));
+        }
+
+        private void buildComponentUnchecked(List<String> componentLines) {
+            try {
+                buildComponent(componentLines);
+            } catch (IOException | ParserException e) {
+                throw new CalendarSynchronizationException(e);
+            }
+        }
+
+        private CalendarEvent toCalendarEvent(VEvent iCalEvent) {
+            DtStart dtStartDate = iCalEvent.getStartDate();
+            DtEnd dtEndDate = iCalEvent.getEndDate(false);
+
+            return CalendarEvent.builder()
+                    .summary(iCalEvent.getSummary().getValue())
+                    .description(iCalEvent.getDescription().getValue())
+                    .uuid(iCalEvent.getUid().getValue())
+                    .startTime(datePropertyToZonedDateTime(dtStartDate))
+                    .endTime(datePropertyToZonedDateTime((dtEndDate == null) ? dtStartDate : dtEndDate))
+                    .allDayEvent(!(dtStartDate.getDate() instanceof DateTime))
+                    .build();
+        }
+
+        private ZonedDateTime datePropertyToZonedDateTime(DateProperty dateProperty) {
+            TimeZone timeZone = dateProperty.getTimeZone();
+            return ZonedDateTime.ofInstant(
+                    dateProperty.getDate().toInstant(),
+                    (timeZone == null) ? defaultTimeZone : resolveZoneId(timeZone));
+        }
+
+        private ZoneId resolveZoneId(TimeZone timeZone) {
+            String tzId = timeZone.getID();
+            String fingerprint = timeZoneFingerprints.get(tzId);
+            return timeZoneCache.getZoneId(
+                    "ical4j|" + tzId + "|" + ((fingerprint == null) ? "" : fingerprint), timeZone::toZoneId);
+        }
+
+        private ZoneId resolveZoneId(String tzId) {
+            return timeZoneCache.getZoneId("java|" + tzId, () -> ZoneId.of(tzId));
+        }
+    }
+
+    @Nullable
+    private static String getTimeZoneId(List<String> componentLines) {
+        for (String componentLine : componentLines) {
+            if (componentLine.regionMatches(true, 0, "TZID", 0, 4)
+                    && componentLine.length() > 4
+                    && (componentLine.charAt(4) == ':' || componentLine.charAt(4) == ';')) {
+
+                int valueStart = componentLine.indexOf(':');
+                return (valueStart < 0) ? null : componentLine.substring(valueStart + 1).trim();
+            }
+        }
+        return null;
     }
 
 }
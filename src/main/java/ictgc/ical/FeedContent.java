@@ -0,0 +1,185 @@
+package ictgc.ical;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Set;
+import javax.annotation.Nonnull;
+
+import lombok.Getter;
+
+/**
+ * Raw feed content spooled to a temporary file, along with the digest of the content.
+ * The digest is calculated while the bytes are read, so no separate pass over the content is required.
+ * Content lines of volatile properties (and their folded continuations) are excluded from the digest,
+ * allowing feeds which regenerate e.g. {@code DTSTAMP} on every request to be recognized as unchanged.
+ */
+class FeedContent implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_PROPERTY_NAME_LENGTH = 64;
+
+    private final Path file;
+
+    /**
+     * Base64-encoded SHA-256 digest of the content, excluding volatile properties.
+     */
+    @Getter
+    private final String digest;
+
+    private FeedContent(Path file, String digest) {
+        this.file = file;
+        this.digest = digest;
+    }
+
+    /**
+     * Reads the stream to the end, spooling it to a temporary file and calculating the digest.
+     * The stream is not closed by this method.
+     *
+     * @param contentStream      feed content.
+     * @param volatileProperties upper-case names of properties to be excluded from the digest.
+     * @param maxSize            maximum number of bytes to be read.
+     * @throws IOException if reading fails or content is larger than allowed.
+     */
+    @Nonnull
+    static FeedContent read(
+            @Nonnull InputStream contentStream,
+            @Nonnull Set<String> volatileProperties,
+            long maxSize) throws IOException {
+
+        Path file = Files.createTempFile("ical-feed-", ".ics");
+        try (OutputStream fileStream = Files.newOutputStream(file)) {
+            LineDigest lineDigest = new LineDigest(volatileProperties);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long totalRead = 0;
+            int read;
+            while ((read = contentStream.read(buffer)) != -1) {
+                totalRead += read;
+                if (totalRead > maxSize) {
+                    throw new IOException("Feed exceeds maximum size of " + maxSize + " bytes");
+                }
+                fileStream.write(buffer, 0, read);
+                lineDigest.update(buffer, read);
+            }
+            return new FeedContent(file, lineDigest.finish());
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a new stream to read spooled content.
+     */
+    @Nonnull
+    InputStream openStream() throws IOException {
+        return new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE);
+    }
+
+    /**
+     * Deletes the spooled content.
+     */
+    @Override
+    public void close() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Digest over content lines, skipping lines of volatile properties.
+     */
+    private static class LineDigest {
+
+        private final MessageDigest messageDigest;
+        private final Set<String> volatileProperties;
+        private final StringBuilder propertyName = new StringBuilder();
+
+        private boolean lineStart = true;
+        private boolean readingPropertyName;
+        private boolean includeLine = true;
+
+        LineDigest(Set<String> volatileProperties) {
+            try {
+                this.messageDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            this.volatileProperties = volatileProperties;
+        }
+
+        void update(byte[] buffer, int length) {
+            int position = 0;
+            while (position < length) {
+                if (lineStart) {
+                    lineStart = false;
+                    byte firstByte = buffer[position];
+                    // folded continuation lines belong to the previous property
+                    if (firstByte != ' ' && firstByte != '\t') {
+                        readingPropertyName = true;
+                        propertyName.setLength(0);
+                    }
+                }
+
+                if (readingPropertyName) {
+                    position = readPropertyName(buffer, position, length);
+                    continue;
+                }
+
+                int lineEnd = indexOfLineEnd(buffer, position, length);
+                int chunkEnd = (lineEnd == -1) ? length : lineEnd + 1;
+                if (includeLine) {
+                    messageDigest.update(buffer, position, chunkEnd - position);
+                }
+                lineStart = lineEnd != -1;
+                position = chunkEnd;
+            }
+        }
+
+        private int readPropertyName(byte[] buffer, int position, int length) {
+            while (position < length) {
+                byte currentByte = buffer[position];
+                if (currentByte == ':' || currentByte == ';' || currentByte == '\n'
+                        || propertyName.length() >= MAX_PROPERTY_NAME_LENGTH) {
+
+                    completePropertyName();
+                    return position;
+                }
+                propertyName.append(Character.toUpperCase((char) (currentByte & 0xFF)));
+                position++;
+            }
+            return position;
+        }
+
+        private void completePropertyName() {
+            readingPropertyName = false;
+            String name = propertyName.toString();
+            includeLine = !volatileProperties.contains(name);
+            if (includeLine) {
+                messageDigest.update(name.getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+
+        private int indexOfLineEnd(byte[] buffer, int position, int length) {
+            for (int index = position; index < length; index++) {
+                if (buffer[index] == '\n') {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        String finish() {
+            if (readingPropertyName) {
+                completePropertyName();
+            }
+            return Base64.getEncoder().encodeToString(messageDigest.digest());
+        }
+    }
+}
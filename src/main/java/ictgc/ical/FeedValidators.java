@@ -0,0 +1,41 @@
+package ictgc.ical;
+
+import javax.annotation.Nullable;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * HTTP cache validators returned by iCalendar feed server.
+ * Sent back with the next request to let the server respond with {@code 304 Not Modified}.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+public class FeedValidators {
+
+    /**
+     * Value of {@code ETag} response header, if provided by server.
+     */
+    @Nullable
+    private final String eTag;
+
+    /**
+     * Value of {@code Last-Modified} response header, if provided by server.
+     */
+    @Nullable
+    private final String lastModified;
+
+    public FeedValidators(@Nullable String eTag, @Nullable String lastModified) {
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Checks if server provided any validator to be used for conditional requests.
+     */
+    public boolean isEmpty() {
+        return eTag == null && lastModified == null;
+    }
+}
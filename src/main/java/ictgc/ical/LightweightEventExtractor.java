@@ -0,0 +1,295 @@
+package ictgc.ical;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ictgc.domain.CalendarEvent;
+
+/**
+ * Extracts {@link CalendarEvent} directly from content lines of a {@code VEVENT} component,
+ * without building ical4j object model. Content lines are unfolded, nested components are skipped
+ * and only the properties required by {@link CalendarEvent} are parsed.
+ * <p>
+ * Produces the same result as ical4j-based parsing in {@link CalendarReader}. Any construct which is
+ * not fully understood (unknown time zones, unusual value formats, encodings etc.) makes extraction
+ * fail, so that the caller falls back to ical4j.
+ */
+class LightweightEventExtractor {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+
+    private static final String UID = "UID";
+    private static final String SUMMARY = "SUMMARY";
+    private static final String DESCRIPTION = "DESCRIPTION";
+    private static final String DTSTART = "DTSTART";
+    private static final String DTEND = "DTEND";
+
+    /**
+     * Extracts the event.
+     *
+     * @param componentLines  raw (folded) content lines of the component, including its BEGIN and END lines.
+     * @param defaultTimeZone time zone to be used for dates without time zone.
+     * @param zoneIdResolver  resolves {@code TZID} into zone; throws {@link DateTimeException} if unknown.
+     * @return extracted event or {@code null} if the component cannot be handled by this extractor.
+     */
+    @Nullable
+    CalendarEvent extract(
+            @Nonnull List<String> componentLines,
+            @Nonnull ZoneId defaultTimeZone,
+            @Nonnull Function<String, ZoneId> zoneIdResolver) {
+
+        Map<String, ContentLine> properties = new HashMap<>();
+        int depth = 0;
+        for (String line : unfold(componentLines)) {
+            ContentLine contentLine = ContentLine.parse(line);
+            if (contentLine == null) {
+                return null;
+            }
+
+            if (contentLine.name.equals("BEGIN")) {
+                depth++;
+            } else if (contentLine.name.equals("END")) {
+                depth--;
+            } else if (depth == 1) {
+                // as ical4j, the first occurrence of property is used
+                properties.putIfAbsent(contentLine.name, contentLine);
+            }
+        }
+
+        ContentLine uid = properties.get(UID);
+        ContentLine summary = properties.get(SUMMARY);
+        ContentLine description = properties.get(DESCRIPTION);
+        ContentLine dtStart = properties.get(DTSTART);
+        ContentLine dtEnd = properties.get(DTEND);
+        if (uid == null || summary == null || description == null || dtStart == null) {
+            return null;
+        }
+        // UID is not unescaped by ical4j, do not guess
+        if (uid.value.indexOf('\\') >= 0 || uid.hasParameter("ENCODING")) {
+            return null;
+        }
+
+        String summaryText = unescapeText(summary);
+        String descriptionText = unescapeText(description);
+        EventTime startTime = parseEventTime(dtStart, defaultTimeZone, zoneIdResolver);
+        EventTime endTime = (dtEnd == null) ? startTime : parseEventTime(dtEnd, defaultTimeZone, zoneIdResolver);
+        if (summaryText == null || descriptionText == null || startTime == null || endTime == null) {
+            return null;
+        }
+
+        return CalendarEvent.builder()
+                .summary(summaryText)
+                .description(descriptionText)
+                .uuid(uid.value)
+                .startTime(startTime.dateTime)
+                .endTime(endTime.dateTime)
+                .allDayEvent(startTime.dateOnly)
+                .build();
+    }
+
+    private List<String> unfold(List<String> componentLines) {
+        List<String> unfoldedLines = new ArrayList<>(componentLines.size());
+        StringBuilder currentLine = null;
+        for (String line : componentLines) {
+            if (!line.isEmpty() && (line.charAt(0) == ' ' || line.charAt(0) == '\t') && currentLine != null) {
+                currentLine.append(line, 1, line.length());
+                continue;
+            }
+            if (currentLine != null) {
+                unfoldedLines.add(currentLine.toString());
+            }
+            currentLine = new StringBuilder(line);
+        }
+        if (currentLine != null) {
+            unfoldedLines.add(currentLine.toString());
+        }
+        return unfoldedLines;
+    }
+
+    /**
+     * Unescapes TEXT value as per RFC 5545 section 3.3.11.
+     */
+    @Nullable
+    private String unescapeText(ContentLine contentLine) {
+        if (contentLine.hasParameter("ENCODING")) {
+            return null;
+        }
+
+        String value = contentLine.value;
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int index = 0; index < value.length(); index++) {
+            char character = value.charAt(index);
+            if (character != '\\' || index == value.length() - 1) {
+                unescaped.append(character);
+                continue;
+            }
+
+            char escaped = value.charAt(++index);
+            switch (escaped) {
+                case 'n':
+                case 'N':
+                    unescaped.append('\n');
+                    break;
+                case '\\':
+                case ',':
+                case ';':
+                case ':':
+                case '"':
+                    unescaped.append(escaped);
+                    break;
+                default:
+                    return null;
+            }
+        }
+        return unescaped.toString();
+    }
+
+    /**
+     * Converts date property into time in the same way as ical4j does: dates are treated as midnight UTC,
+     * floating date-times are treated as local to JVM time zone, and the result is represented
+     * in the property time zone, if defined, or in the default one.
+     */
+    @Nullable
+    private EventTime parseEventTime(
+            ContentLine contentLine, ZoneId defaultTimeZone, Function<String, ZoneId> zoneIdResolver) {
+
+        String valueType = contentLine.getParameter("VALUE");
+        String tzId = contentLine.getParameter("TZID");
+        String value = contentLine.value.trim();
+
+        try {
+            if (value.length() == 8 && "DATE".equalsIgnoreCase(valueType) && tzId == null) {
+                Instant instant = LocalDate.parse(value, DATE_FORMAT).atStartOfDay(ZoneOffset.UTC).toInstant();
+                return new EventTime(ZonedDateTime.ofInstant(instant, defaultTimeZone), true);
+            }
+
+            if (valueType != null && !"DATE-TIME".equalsIgnoreCase(valueType)) {
+                return null;
+            }
+
+            if (value.length() == 16 && value.charAt(15) == 'Z') {
+                Instant instant = LocalDateTime.parse(value.substring(0, 15), DATE_TIME_FORMAT)
+                        .toInstant(ZoneOffset.UTC);
+                return new EventTime(ZonedDateTime.ofInstant(instant, defaultTimeZone), false);
+            }
+
+            if (value.length() != 15) {
+                return null;
+            }
+
+            LocalDateTime localDateTime = LocalDateTime.parse(value, DATE_TIME_FORMAT);
+            if (tzId == null) {
+                Instant instant = localDateTime.atZone(ZoneId.systemDefault()).toInstant();
+                return new EventTime(ZonedDateTime.ofInstant(instant, defaultTimeZone), false);
+            }
+
+            return new EventTime(localDateTime.atZone(zoneIdResolver.apply(tzId)), false);
+        } catch (DateTimeParseException | DateTimeException e) {
+            return null;
+        }
+    }
+
+    private static class EventTime {
+        private final ZonedDateTime dateTime;
+        private final boolean dateOnly;
+
+        EventTime(ZonedDateTime dateTime, boolean dateOnly) {
+            this.dateTime = dateTime;
+            this.dateOnly = dateOnly;
+        }
+    }
+
+    /**
+     * Single unfolded content line: {@code name *(";" param) ":" value}.
+     */
+    private static class ContentLine {
+        private final String name;
+        private final Map<String, String> parameters;
+        private final String value;
+
+        private ContentLine(String name, Map<String, String> parameters, String value) {
+            this.name = name;
+            this.parameters = parameters;
+            this.value = value;
+        }
+
+        @Nullable
+        static ContentLine parse(String line) {
+            int nameEnd = 0;
+            while (nameEnd < line.length() && line.charAt(nameEnd) != ';' && line.charAt(nameEnd) != ':') {
+                nameEnd++;
+            }
+            if (nameEnd == 0 || nameEnd == line.length()) {
+                return null;
+            }
+            String name = line.substring(0, nameEnd).trim().toUpperCase(Locale.ROOT);
+
+            Map<String, String> parameters = new HashMap<>();
+            int position = nameEnd;
+            while (line.charAt(position) == ';') {
+                int parameterNameEnd = line.indexOf('=', position);
+                if (parameterNameEnd < 0) {
+                    return null;
+                }
+                String parameterName = line.substring(position + 1, parameterNameEnd).trim().toUpperCase(Locale.ROOT);
+
+                int valueStart = parameterNameEnd + 1;
+                int valueEnd;
+                String parameterValue;
+                if (valueStart < line.length() && line.charAt(valueStart) == '"') {
+                    int closingQuote = line.indexOf('"', valueStart + 1);
+                    if (closingQuote < 0) {
+                        return null;
+                    }
+                    parameterValue = line.substring(valueStart + 1, closingQuote);
+                    valueEnd = closingQuote + 1;
+                } else {
+                    valueEnd = valueStart;
+                    while (valueEnd < line.length() && line.charAt(valueEnd) != ';' && line.charAt(valueEnd) != ':') {
+                        valueEnd++;
+                    }
+                    parameterValue = line.substring(valueStart, valueEnd);
+                }
+                if (valueEnd >= line.length()) {
+                    return null;
+                }
+                parameters.put(parameterName, parameterValue);
+                position = valueEnd;
+            }
+
+            if (line.charAt(position) != ':') {
+                return null;
+            }
+            return new ContentLine(name, parameters, line.substring(position + 1));
+        }
+
+        boolean hasParameter(String parameterName) {
+            return parameters.containsKey(parameterName);
+        }
+
+        @Nullable
+        String getParameter(String parameterName) {
+            return parameters.get(parameterName);
+        }
+    }
+}
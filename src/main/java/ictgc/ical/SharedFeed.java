@@ -0,0 +1,61 @@
+package ictgc.ical;
+
+import java.time.Instant;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ictgc.domain.CalendarEvents;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Parsed iCalendar feed shared by all the flows subscribed to it, as provided by {@link SharedFeedReader}.
+ */
+@Getter
+@ToString(exclude = "events")
+public class SharedFeed {
+
+    /**
+     * Digest of the feed content events were parsed from.
+     */
+    @Nonnull
+    private final String digest;
+
+    /**
+     * Validators to be used for the next retrieval of the feed.
+     */
+    @Nonnull
+    private final FeedValidators validators;
+
+    /**
+     * Events parsed from the feed; {@code null} if they have been released, see {@link SharedFeedReader}.
+     */
+    @Nullable
+    private final CalendarEvents events;
+
+    /**
+     * Time of the latest retrieval of the feed.
+     */
+    @Nonnull
+    private final Instant retrievalTime;
+
+    SharedFeed(
+            @Nonnull String digest,
+            @Nonnull FeedValidators validators,
+            @Nullable CalendarEvents events,
+            @Nonnull Instant retrievalTime) {
+
+        this.digest = digest;
+        this.validators = validators;
+        this.events = events;
+        this.retrievalTime = retrievalTime;
+    }
+
+    SharedFeed retrievedAt(@Nonnull Instant newRetrievalTime, @Nonnull FeedValidators newValidators) {
+        return new SharedFeed(digest, newValidators, events, newRetrievalTime);
+    }
+
+    SharedFeed withoutEvents() {
+        return new SharedFeed(digest, validators, null, retrievalTime);
+    }
+}
@@ -0,0 +1,286 @@
+package ictgc.ical;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ictgc.ApplicationProperties;
+import ictgc.domain.CalendarEvents;
+import ictgc.pipeline.PipelineStage;
+import ictgc.state.FeedState;
+import ictgc.state.SyncStateStore;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.stereotype.Service;
+
+/**
+ * Reads iCalendar feeds shared by multiple flows, e.g. team or holiday calendars subscribed by many users.
+ * Feeds are identified by URL, default time zone and parser mode, as all of them define the parsed events.
+ * <p>
+ * Feed is retrieved at most once per freshness window, equal to the minimal polling interval, as flows have
+ * jittered schedules and are rarely due at the same time: concurrent requests for the same feed join
+ * the one in progress, and later requests within the window get its result. Flows which have
+ * already processed unchanged feed do not need it to be parsed again. Thread-safe.
+ * <p>
+ * Parsed events are only kept within the freshness window, see {@link SharedFeedReader#releaseExpiredEvents}.
+ * Later, only digest and validators are kept: if feed is not modified, events are not provided to flows
+ * which have already processed it, and feed is retrieved and parsed again for other flows.
+ * Digest and validators are also persisted, so that conditional requests are issued after restart.
+ */
+@Slf4j
+@Service
+public class SharedFeedReader {
+
+    private final CalendarFeedFetcher calendarFeedFetcher;
+    private final CalendarReader calendarReader;
+    private final ConcurrentMap<FeedKey, SharedFeed> feeds = new ConcurrentHashMap<>();
+    private final ConcurrentMap<FeedKey, CompletableFuture<SharedFeed>> retrievals = new ConcurrentHashMap<>();
+    private final PipelineStage fetchStage;
+    private final PipelineStage parseStage;
+    private final Executor retrievalExecutor;
+    private final Duration freshnessWindow;
+    private final SyncStateStore syncStateStore;
+
+    @Autowired
+    public SharedFeedReader(
+            CalendarFeedFetcher calendarFeedFetcher,
+            CalendarReader calendarReader,
+            @Qualifier("feedFetchStage") PipelineStage fetchStage,
+            @Qualifier("feedParseStage") PipelineStage parseStage,
+            @Qualifier("feedRetrievalTaskExecutor") TaskExecutor retrievalExecutor,
+            SyncStateStore syncStateStore,
+            ApplicationProperties config) {
+
+        this.freshnessWindow = config.getPolling().getMinInterval();
+        this.syncStateStore = syncStateStore;
+        this.calendarFeedFetcher = calendarFeedFetcher;
+        this.calendarReader = calendarReader;
+        this.fetchStage = fetchStage;
+        this.parseStage = parseStage;
+        this.retrievalExecutor = retrievalExecutor;
+    }
+
+    /**
+     * Provides the feed, retrieving it if it has not been retrieved within the freshness window.
+     * Feed is fetched in the fetch stage and parsed in the parse stage of the pipeline; the calling thread
+     * is only blocked while the fetch stage queue is full.
+     *
+     * @param iCalUrl         URL of the feed.
+     * @param defaultTimeZone time zone to be used if feed does not provide one.
+     * @param parserMode      defines how events of the feed are parsed.
+     * @param fetchTimeout    read timeout for feed retrieval; client default is used if not provided.
+     * @param knownDigest     digest of the feed content caller has already processed, if any.
+     * @param now             current time.
+     * @return the feed, completed exceptionally with {@link IOException} in case of retrieval issues.
+     * Events are always provided, unless feed digest is equal to {@code knownDigest}.
+     */
+    @Nonnull
+    public CompletableFuture<SharedFeed> read(
+            @Nonnull String iCalUrl,
+            @Nonnull ZoneId defaultTimeZone,
+            @Nonnull CalendarParserMode parserMode,
+            @Nullable Duration fetchTimeout,
+            @Nullable String knownDigest,
+            @Nonnull Instant now) {
+
+        FeedKey feedKey = new FeedKey(iCalUrl, defaultTimeZone, parserMode);
+        SharedFeed feed = getFreshFeed(feedKey, knownDigest, now);
+        if (feed != null) {
+            log.trace("{} has been retrieved recently", feedKey);
+            return CompletableFuture.completedFuture(feed);
+        }
+
+        CompletableFuture<SharedFeed> retrieval = new CompletableFuture<>();
+        CompletableFuture<SharedFeed> activeRetrieval = retrievals.putIfAbsent(feedKey, retrieval);
+        if (activeRetrieval != null) {
+            log.trace("joining active retrieval of {}", feedKey);
+            // active retrieval might skip parsing if its initiator does not need the events;
+            // the next one is started outside of the pipeline workers completing the active one
+            return activeRetrieval.thenCompose(activeFeed -> isSufficient(activeFeed, knownDigest)
+                    ? CompletableFuture.completedFuture(activeFeed)
+                    : CompletableFuture.supplyAsync(() -> read(
+                            iCalUrl, defaultTimeZone, parserMode, fetchTimeout, knownDigest, now), retrievalExecutor)
+                    .thenCompose(Function.identity()));
+        }
+
+        try {
+            // another retrieval might have been completed since the first check
+            feed = getFreshFeed(feedKey, knownDigest, now);
+            if (feed != null) {
+                completeRetrieval(feedKey, retrieval, feed, null);
+                return retrieval;
+            }
+
+            SharedFeed previousFeed = feeds.get(feedKey);
+            if (previousFeed == null) {
+                previousFeed = loadFeedState(feedKey);
+            }
+            SharedFeed lastFeed = previousFeed;
+            // not modified response is only useful if events are held or caller does not need them
+            FeedValidators validators = (lastFeed == null || !isSufficient(lastFeed, knownDigest))
+                    ? null : lastFeed.getValidators();
+            fetchStage.submit(() -> calendarFeedFetcher.fetch(iCalUrl, validators, fetchTimeout))
+                    .thenCompose(calendarFeed -> process(feedKey, lastFeed, calendarFeed, knownDigest, now))
+                    .whenComplete((newFeed, error) -> {
+                        if (error == null) {
+                            saveFeedState(feedKey, lastFeed, newFeed);
+                        }
+                        completeRetrieval(feedKey, retrieval, newFeed, error);
+                    });
+        } catch (RuntimeException e) {
+            completeRetrieval(feedKey, retrieval, null, e);
+        }
+        return retrieval;
+    }
+
+    /**
+     * Releases events of the feeds retrieved before the freshness window, so that they are not kept in memory
+     * between retrievals. Digests and validators are kept.
+     */
+    public void releaseExpiredEvents(@Nonnull Instant now) {
+        for (FeedKey feedKey : feeds.keySet()) {
+            feeds.computeIfPresent(feedKey, (key, feed) -> (feed.getEvents() == null || isFresh(feed, now))
+                    ? feed : feed.withoutEvents());
+        }
+    }
+
+    /**
+     * Restores digest and validators persisted before restart. Events are not persisted, thus feed
+     * only satisfies flows which have processed it, and is not fresh.
+     */
+    private SharedFeed loadFeedState(FeedKey feedKey) {
+        FeedState feedState = syncStateStore.loadFeedState(feedKey.toStorageKey());
+        if (feedState == null) {
+            return null;
+        }
+        log.debug("state of {} is restored: {}", feedKey, feedState);
+        return new SharedFeed(
+                feedState.getDigest(),
+                new FeedValidators(feedState.getETag(), feedState.getLastModified()),
+                null,
+                Instant.EPOCH);
+    }
+
+    private void saveFeedState(FeedKey feedKey, SharedFeed previousFeed, SharedFeed newFeed) {
+        if (previousFeed != null && previousFeed.getDigest().equals(newFeed.getDigest())
+                && previousFeed.getValidators().equals(newFeed.getValidators())) {
+            return;
+        }
+        FeedValidators validators = newFeed.getValidators();
+        syncStateStore.saveFeedState(feedKey.toStorageKey(),
+                new FeedState(newFeed.getDigest(), validators.getETag(), validators.getLastModified()));
+    }
+
+    private SharedFeed getFreshFeed(FeedKey feedKey, String knownDigest, Instant now) {
+        SharedFeed feed = feeds.get(feedKey);
+        return (feed == null || !isFresh(feed, now) || !isSufficient(feed, knownDigest)) ? null : feed;
+    }
+
+    private boolean isFresh(SharedFeed feed, Instant now) {
+        return feed.getRetrievalTime().plus(freshnessWindow).isAfter(now);
+    }
+
+    /**
+     * Checks if the feed satisfies the caller: either holds events or the caller has already processed it.
+     */
+    private boolean isSufficient(SharedFeed feed, String knownDigest) {
+        return feed.getEvents() != null || feed.getDigest().equals(knownDigest);
+    }
+
+    private CompletableFuture<SharedFeed> process(
+            FeedKey feedKey, SharedFeed previousFeed, CalendarFeed calendarFeed, String knownDigest, Instant now) {
+
+        CompletableFuture<SharedFeed> result = new CompletableFuture<>();
+        try {
+            if (calendarFeed.isNotModified()) {
+                log.trace("{} is not modified", feedKey);
+                calendarFeed.close();
+                result.complete(previousFeed.retrievedAt(now, calendarFeed.getValidators()));
+                return result;
+            }
+
+            if (previousFeed != null && calendarFeed.getDigest().equals(previousFeed.getDigest())
+                    && isSufficient(previousFeed, knownDigest)) {
+                log.trace("{} content is not changed", feedKey);
+                calendarFeed.close();
+                result.complete(previousFeed.retrievedAt(now, calendarFeed.getValidators()));
+                return result;
+            }
+
+            return parseStage.submit(() -> parse(feedKey, calendarFeed, now));
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(calendarFeed);
+            result.completeExceptionally(e);
+            return result;
+        }
+    }
+
+    private SharedFeed parse(FeedKey feedKey, CalendarFeed calendarFeed, Instant now) throws IOException {
+        try (CalendarFeed parsedFeed = calendarFeed) {
+            CalendarEvents events;
+            try (InputStream contentStream = parsedFeed.openContent()) {
+                events = calendarReader.readCalendar(contentStream, feedKey.defaultTimeZone, feedKey.parserMode);
+            }
+
+            log.trace("{} is parsed", feedKey);
+
+            return new SharedFeed(parsedFeed.getDigest(), parsedFeed.getValidators(), events, now);
+        }
+    }
+
+    private void completeRetrieval(
+            FeedKey feedKey, CompletableFuture<SharedFeed> retrieval, SharedFeed feed, Throwable error) {
+
+        // feed is published before retrieval is removed, thus no one starts another retrieval within the window
+        if (error == null) {
+            feeds.put(feedKey, feed);
+        }
+        retrievals.remove(feedKey, retrieval);
+
+        if (error == null) {
+            retrieval.complete(feed);
+        } else {
+            retrieval.completeExceptionally((error instanceof CompletionException) ? error.getCause() : error);
+        }
+    }
+
+    private void closeQuietly(CalendarFeed calendarFeed) {
+        try {
+            calendarFeed.close();
+        } catch (IOException e) {
+            log.warn("failed to release content of feed", e);
+        }
+    }
+
+    @EqualsAndHashCode
+    @ToString
+    private static class FeedKey {
+        private final String iCalUrl;
+        private final ZoneId defaultTimeZone;
+        private final CalendarParserMode parserMode;
+
+        FeedKey(String iCalUrl, ZoneId defaultTimeZone, CalendarParserMode parserMode) {
+            this.iCalUrl = iCalUrl;
+            this.defaultTimeZone = defaultTimeZone;
+            this.parserMode = parserMode;
+        }
+
+        String toStorageKey() {
+            return iCalUrl + "/" + defaultTimeZone.getId() + "/" + parserMode;
+        }
+    }
+}
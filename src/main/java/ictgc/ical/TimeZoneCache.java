@@ -0,0 +1,128 @@
+package ictgc.ical;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneId;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ictgc.ApplicationProperties;
+import net.fortuna.ical4j.model.TimeZone;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Process-wide cache of time zone resolution results, shared by all the feeds.
+ * Holds ical4j time zones built from {@code VTIMEZONE} definitions, keyed by definition fingerprint,
+ * and {@link ZoneId}s resolved for time zone identifiers. Both are bounded and evict least recently used
+ * entries. Thread-safe.
+ */
+@Component
+public class TimeZoneCache {
+
+    private final Map<String, TimeZone> timeZones;
+    private final Map<String, ZoneId> zoneIds;
+    private final AtomicLong hitsCount = new AtomicLong();
+    private final AtomicLong missesCount = new AtomicLong();
+
+    @Autowired
+    public TimeZoneCache(ApplicationProperties config) {
+        int maxSize = config.getTimeZoneCacheSize();
+        this.timeZones = new LruMap<>(maxSize);
+        this.zoneIds = new LruMap<>(maxSize);
+    }
+
+    /**
+     * Calculates fingerprint of {@code VTIMEZONE} definition to be used as a cache key.
+     *
+     * @param componentLines raw content lines of the component.
+     */
+    @Nonnull
+    static String fingerprint(@Nonnull List<String> componentLines) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            for (String componentLine : componentLines) {
+                messageDigest.update(componentLine.getBytes(StandardCharsets.UTF_8));
+                messageDigest.update((byte) '\n');
+            }
+            return Base64.getEncoder().encodeToString(messageDigest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns ical4j time zone built from the definition with provided fingerprint, building it if not cached yet.
+     * Loader is called outside of the cache lock, thus may be called concurrently for the same definition.
+     * {@code null} results of the loader are not cached.
+     */
+    @Nullable
+    TimeZone getTimeZone(@Nonnull String fingerprint, @Nonnull Supplier<TimeZone> loader) {
+        return get(timeZones, fingerprint, loader);
+    }
+
+    /**
+     * Returns zone ID resolved for the key, resolving it if not cached yet.
+     * Loader is called outside of the cache lock, thus may be called concurrently for the same key.
+     */
+    @Nonnull
+    ZoneId getZoneId(@Nonnull String key, @Nonnull Supplier<ZoneId> loader) {
+        return get(zoneIds, key, loader);
+    }
+
+    private <V> V get(Map<String, V> cache, String key, Supplier<V> loader) {
+        V value;
+        synchronized (cache) {
+            value = cache.get(key);
+        }
+        if (value != null) {
+            hitsCount.incrementAndGet();
+            return value;
+        }
+
+        missesCount.incrementAndGet();
+        value = loader.get();
+        if (value != null) {
+            synchronized (cache) {
+                cache.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Number of lookups served from the cache.
+     */
+    public long getHitsCount() {
+        return hitsCount.get();
+    }
+
+    /**
+     * Number of lookups which required resolution.
+     */
+    public long getMissesCount() {
+        return missesCount.get();
+    }
+
+    private static class LruMap<V> extends LinkedHashMap<String, V> {
+
+        private final int maxSize;
+
+        LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
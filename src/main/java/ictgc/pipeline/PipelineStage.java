@@ -0,0 +1,179 @@
+package ictgc.pipeline;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Stage of synchronization pipeline: fixed number of workers executing tasks from a bounded queue.
+ * Submitting thread is blocked while the queue is full, thus a slow stage holds back the previous ones.
+ * Tracks queue depth and time tasks spend waiting in the queue and being executed.
+ * <p>
+ * With platform threads workers are a fixed pool. Virtual threads are not pooled: every task is started
+ * in a new thread, which waits for a worker permit before execution, thus waiting threads form the queue.
+ * <p>
+ * Result of a task is completed in the worker thread, so dependent actions submitting tasks to the next stage
+ * occupy the worker until the next stage accepts them. The place of the task in this stage is freed only after
+ * its dependent actions complete, thus a blocked worker is still counted against the capacity, and the queue
+ * never overflows. Tasks must not be submitted to the same stage from its own workers.
+ */
+public class PipelineStage {
+
+    private final String name;
+    private final Executor executor;
+    private final Semaphore capacity;
+    @Nullable
+    private final Semaphore workers;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong waitTimeNanos = new AtomicLong();
+    private final AtomicLong executionTimeNanos = new AtomicLong();
+    private volatile boolean shutdown;
+
+    /**
+     * @param name          name of the stage, used as a prefix for worker threads names.
+     * @param concurrency   number of workers.
+     * @param queueCapacity maximum number of tasks waiting for a worker.
+     * @param threadMode    defines kind of worker threads.
+     */
+    public PipelineStage(@Nonnull String name, int concurrency, int queueCapacity, @Nonnull ThreadMode threadMode) {
+        this.name = name;
+        ThreadFactory threadFactory = threadMode.newThreadFactory(name + "-");
+        if (threadMode == ThreadMode.VIRTUAL) {
+            this.executor = task -> threadFactory.newThread(task).start();
+            this.workers = new Semaphore(concurrency);
+        } else {
+            this.executor = new ThreadPoolExecutor(
+                    concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(queueCapacity), threadFactory);
+            this.workers = null;
+        }
+        this.capacity = new Semaphore(concurrency + queueCapacity);
+    }
+
+    /**
+     * Submits the task for execution, waiting for a free place in the queue if required.
+     *
+     * @return result of the task, completed exceptionally if task fails.
+     * @throws RejectedExecutionException if stage is shut down.
+     */
+    @Nonnull
+    public <T> CompletableFuture<T> submit(@Nonnull Callable<T> task) {
+        if (shutdown) {
+            throw new RejectedExecutionException(name + " stage is shut down");
+        }
+        capacity.acquireUninterruptibly();
+        long submittedAt = System.nanoTime();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        queueDepth.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                if (workers != null) {
+                    workers.acquireUninterruptibly();
+                }
+                queueDepth.decrementAndGet();
+                activeCount.incrementAndGet();
+                long startedAt = System.nanoTime();
+                waitTimeNanos.addAndGet(startedAt - submittedAt);
+                T value = null;
+                Throwable error = null;
+                try {
+                    value = task.call();
+                } catch (Throwable e) {
+                    error = e;
+                } finally {
+                    executionTimeNanos.addAndGet(System.nanoTime() - startedAt);
+                    completedCount.incrementAndGet();
+                    activeCount.decrementAndGet();
+                }
+
+                // dependent actions run here and keep the place in the stage until the next stage accepts them
+                try {
+                    if (error == null) {
+                        result.complete(value);
+                    } else {
+                        result.completeExceptionally(error);
+                    }
+                } finally {
+                    if (workers != null) {
+                        workers.release();
+                    }
+                    capacity.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queueDepth.decrementAndGet();
+            capacity.release();
+            throw e;
+        }
+        return result;
+    }
+
+    @Nonnull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Number of tasks waiting for a worker.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Number of tasks being executed.
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * Total number of executed tasks.
+     */
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * Average time tasks waited for a worker, in milliseconds.
+     */
+    public long getAverageWaitTimeMillis() {
+        return average(waitTimeNanos);
+    }
+
+    /**
+     * Average time of tasks execution, in milliseconds.
+     */
+    public long getAverageExecutionTimeMillis() {
+        return average(executionTimeNanos);
+    }
+
+    private long average(AtomicLong totalNanos) {
+        long count = completedCount.get();
+        return (count == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / count);
+    }
+
+    /**
+     * Stops accepting tasks and interrupts pooled workers, called by the container on shutdown.
+     * Virtual threads are daemon threads, so the ones still running do not prevent the application from exiting.
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdownNow();
+        }
+    }
+}
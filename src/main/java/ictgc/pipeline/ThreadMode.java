@@ -0,0 +1,56 @@
+package ictgc.pipeline;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import javax.annotation.Nonnull;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Defines which threads execute I/O-bound synchronization tasks.
+ */
+public enum ThreadMode {
+
+    /**
+     * Platform (OS) threads.
+     */
+    PLATFORM {
+        @Nonnull
+        @Override
+        public ThreadFactory newThreadFactory(@Nonnull String namePrefix) {
+            return new CustomizableThreadFactory(namePrefix);
+        }
+    },
+
+    /**
+     * Virtual threads, which are not bound to OS threads while blocked on I/O. Requires Java 21 or newer
+     * at runtime; application is compiled for Java 8, thus virtual threads are created via reflection.
+     */
+    VIRTUAL {
+        @Nonnull
+        @Override
+        public ThreadFactory newThreadFactory(@Nonnull String namePrefix) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+                Method factoryMethod = builderClass.getMethod("factory");
+                return (ThreadFactory) factoryMethod.invoke(builder);
+            } catch (NoSuchMethodException | ClassNotFoundException e) {
+                throw new IllegalStateException("Virtual threads require Java 21 or newer, running on "
+                        + System.getProperty("java.version"), e);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Failed to create virtual threads factory", e);
+            }
+        }
+    };
+
+    /**
+     * Creates factory of threads of this mode.
+     *
+     * @param namePrefix prefix of threads names, followed by a sequence number.
+     */
+    @Nonnull
+    public abstract ThreadFactory newThreadFactory(@Nonnull String namePrefix);
+}
@@ -0,0 +1,61 @@
+package ictgc.state;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nonnull;
+
+import lombok.Getter;
+
+/**
+ * Persisted index of events in Google Calendar, mapping events created by the application to their IDs.
+ * Allows to continue incremental listing after restart instead of listing the whole calendar.
+ */
+@Getter
+public class EventIndexState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Sync token to continue listing from.
+     */
+    @Nonnull
+    private final String syncToken;
+
+    @Nonnull
+    private final ArrayList<IndexedEvent> events;
+
+    public EventIndexState(@Nonnull String syncToken, @Nonnull List<IndexedEvent> events) {
+        this.syncToken = syncToken;
+        this.events = new ArrayList<>(events);
+    }
+
+    /**
+     * Data of indexed event, as it is projected by events listing.
+     */
+    @Getter
+    public static class IndexedEvent implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        @Nonnull
+        private final String id;
+
+        @Nonnull
+        private final String etag;
+
+        /**
+         * Private extended properties of the event, holding iCalendar UUID and fingerprint.
+         */
+        @Nonnull
+        private final HashMap<String, String> privateProperties;
+
+        public IndexedEvent(@Nonnull String id, @Nonnull String etag, @Nonnull Map<String, String> privateProperties) {
+            this.id = id;
+            this.etag = etag;
+            this.privateProperties = new HashMap<>(privateProperties);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package ictgc.state;
+
+import java.io.Serializable;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Persisted state of iCalendar feed shared by flows: what has been retrieved the last time.
+ * Allows to issue conditional requests after restart.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+public class FeedState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Digest of the feed content.
+     */
+    @Nonnull
+    private final String digest;
+
+    /**
+     * Value of {@code ETag} response header of the feed.
+     */
+    @Nullable
+    private final String eTag;
+
+    /**
+     * Value of {@code Last-Modified} response header of the feed.
+     */
+    @Nullable
+    private final String lastModified;
+
+    public FeedState(@Nonnull String digest, @Nullable String eTag, @Nullable String lastModified) {
+        this.digest = digest;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+}
@@ -0,0 +1,39 @@
+package ictgc.state;
+
+import java.io.Serializable;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ictgc.domain.CalendarSnapshot;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Persisted state of calendar flow: what has been synchronized to Google Calendar the last time.
+ * Allows to skip unchanged feeds after restart.
+ */
+@Getter
+@ToString(exclude = "snapshot")
+@EqualsAndHashCode
+public class FlowState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Digest of the feed content snapshot was taken from.
+     */
+    @Nullable
+    private final String feedDigest;
+
+    /**
+     * Snapshot of events synchronized to Google Calendar.
+     */
+    @Nonnull
+    private final CalendarSnapshot snapshot;
+
+    public FlowState(@Nullable String feedDigest, @Nonnull CalendarSnapshot snapshot) {
+        this.feedDigest = feedDigest;
+        this.snapshot = snapshot;
+    }
+}
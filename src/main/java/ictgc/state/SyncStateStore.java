@@ -0,0 +1,161 @@
+package ictgc.state;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.api.client.util.store.DataStore;
+import com.google.api.client.util.store.DataStoreFactory;
+import ictgc.ApplicationProperties;
+import ictgc.google.PerKeyFileDataStoreFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Local persistent storage of synchronization state, surviving application restarts.
+ * Every state is kept in a separate file, which is atomically replaced on write, thus a crash
+ * never leaves partially written state. Nothing is read at startup: files are created on first write
+ * and every state is read when it is requested for the first time.
+ * <p>
+ * State is an optimization only: storage failures are logged and treated as missing state,
+ * which leads to full synchronization.
+ */
+@Slf4j
+@Component
+public class SyncStateStore {
+
+    private static final String FLOW_STATES_STORE_ID = "flows";
+    private static final String FEED_STATES_STORE_ID = "feeds";
+    private static final String EVENT_INDEX_STATES_STORE_ID = "google-event-indexes";
+
+    private final ApplicationProperties config;
+    private final Lock dataStoreFactoryLock = new ReentrantLock();
+    private DataStoreFactory dataStoreFactory;
+
+    @Autowired
+    public SyncStateStore(ApplicationProperties config) {
+        this.config = config;
+    }
+
+    /**
+     * Loads state of calendar flow.
+     *
+     * @param flowKey unique key of the flow.
+     * @return persisted state, or {@code null} if none is available.
+     */
+    @Nullable
+    public FlowState loadFlowState(@Nonnull String flowKey) {
+        return load(FLOW_STATES_STORE_ID, flowKey);
+    }
+
+    /**
+     * Persists state of calendar flow.
+     *
+     * @param flowKey   unique key of the flow.
+     * @param flowState state to persist; persisted state is removed if not provided.
+     */
+    public void saveFlowState(@Nonnull String flowKey, @Nullable FlowState flowState) {
+        save(FLOW_STATES_STORE_ID, flowKey, flowState);
+    }
+
+    /**
+     * Loads state of iCalendar feed.
+     *
+     * @param feedKey unique key of the feed.
+     * @return persisted state, or {@code null} if none is available.
+     */
+    @Nullable
+    public FeedState loadFeedState(@Nonnull String feedKey) {
+        return load(FEED_STATES_STORE_ID, feedKey);
+    }
+
+    /**
+     * Persists state of iCalendar feed.
+     *
+     * @param feedKey   unique key of the feed.
+     * @param feedState state to persist.
+     */
+    public void saveFeedState(@Nonnull String feedKey, @Nonnull FeedState feedState) {
+        save(FEED_STATES_STORE_ID, feedKey, feedState);
+    }
+
+    /**
+     * Loads index of events in Google Calendar.
+     *
+     * @param calendarKey unique key of the calendar.
+     * @return persisted index, or {@code null} if none is available.
+     */
+    @Nullable
+    public EventIndexState loadEventIndexState(@Nonnull String calendarKey) {
+        return load(EVENT_INDEX_STATES_STORE_ID, calendarKey);
+    }
+
+    /**
+     * Persists index of events in Google Calendar.
+     *
+     * @param calendarKey     unique key of the calendar.
+     * @param eventIndexState index to persist; persisted index is removed if not provided.
+     */
+    public void saveEventIndexState(@Nonnull String calendarKey, @Nullable EventIndexState eventIndexState) {
+        save(EVENT_INDEX_STATES_STORE_ID, calendarKey, eventIndexState);
+    }
+
+    private <V extends Serializable> V load(String storeId, String key) {
+        try {
+            DataStore<V> dataStore = getDataStore(storeId);
+            return dataStore.get(toStorageKey(key));
+        } catch (IOException | RuntimeException e) {
+            log.warn("failed to load " + storeId + " state of " + key + ", it is ignored", e);
+            return null;
+        }
+    }
+
+    private <V extends Serializable> void save(String storeId, String key, V value) {
+        try {
+            DataStore<V> dataStore = getDataStore(storeId);
+            if (value == null) {
+                dataStore.delete(toStorageKey(key));
+            } else {
+                dataStore.set(toStorageKey(key), value);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("failed to save " + storeId + " state of " + key, e);
+        }
+    }
+
+    private <V extends Serializable> DataStore<V> getDataStore(String storeId) throws IOException {
+        dataStoreFactoryLock.lock();
+        try {
+            if (dataStoreFactory == null) {
+                dataStoreFactory = new PerKeyFileDataStoreFactory(config.getSyncStateDirectory());
+            }
+            return dataStoreFactory.getDataStore(storeId);
+        } finally {
+            dataStoreFactoryLock.unlock();
+        }
+    }
+
+    /**
+     * Keys contain URLs and may be too long to be used as file names, thus their digests are used.
+     */
+    private static String toStorageKey(String key) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            byte[] digest = messageDigest.digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder storageKey = new StringBuilder(digest.length * 2);
+            for (byte digestByte : digest) {
+                storageKey.append(String.format("%02x", digestByte));
+            }
+            return storageKey.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}